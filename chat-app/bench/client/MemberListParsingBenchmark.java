@@ -0,0 +1,35 @@
+// Benchmark for the client-side parsing of "MEMBERS:" lines.
+// MemberListParsingBenchmark.java measures ChatClient.parseMemberList for lists of N members.
+
+package client;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MemberListParsingBenchmark {
+    @Param({"10", "1000", "10000"})
+    int members;
+
+    private String line;
+
+    @Setup
+    public void setUp() {
+        StringBuilder builder = new StringBuilder("MEMBERS:");
+        for (int i = 0; i < members; i++) {
+            builder.append("user").append(i).append(",");
+        }
+        line = builder.toString();
+    }
+
+    @Benchmark
+    public String[] parseMembers() {
+        return ChatClient.parseMemberList(line.substring(8));
+    }
+}
@@ -0,0 +1,64 @@
+// Benchmark for the line framing used by ClientHandler (BufferedReader.readLine) and for Frame encoding.
+// LineFramingBenchmark.java reads and encodes 1000 lines per operation, entirely in memory.
+
+package common;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LineFramingBenchmark {
+    private static final int LINES = 1000;
+
+    @Param({"16", "256", "4096"})
+    int lineLength;
+
+    private byte[] input;
+    private String line;
+
+    @Setup
+    public void setUp() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < lineLength; i++) {
+            builder.append((char) ('a' + i % 26));
+        }
+        line = builder.toString();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (int i = 0; i < LINES; i++) {
+            bytes.writeBytes(Frame.of(line).bytes());
+        }
+        input = bytes.toByteArray();
+    }
+
+    // Samma inläsning som ClientHandler.run gör från socketen.
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public int readLines() throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(input), StandardCharsets.UTF_8));
+        int total = 0;
+        String message;
+        while ((message = in.readLine()) != null) {
+            total += message.length();
+        }
+        return total;
+    }
+
+    // Kodningen av en utgående rad.
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public int encodeFrames() {
+        int total = 0;
+        for (int i = 0; i < LINES; i++) {
+            total += Frame.of(line).bytes().length;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,56 @@
+// An in-memory session used by the benchmarks instead of a real socket connection.
+// BenchSession.java counts what it is sent so the JIT cannot optimize the fan-out away.
+
+package server;
+
+import common.ChatSession;
+import common.Frame;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+class BenchSession implements ChatSession {
+    private final String username;
+    private final Set<String> capabilities = ConcurrentHashMap.newKeySet();
+    long frames;
+    long bytes;
+
+    BenchSession(String username) {
+        this.username = username;
+    }
+
+    @Override
+    public void send(Frame frame) {
+        frames++;
+        bytes += frame.bytes().length;
+    }
+
+    @Override
+    public String getUsername() {
+        return username;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return 0;
+    }
+
+    @Override
+    public long getDroppedMessages() {
+        return 0;
+    }
+
+    @Override
+    public Set<String> getCapabilities() {
+        return capabilities;
+    }
+
+    @Override
+    public long getLastActivity() {
+        return System.nanoTime();
+    }
+
+    @Override
+    public void disconnect() {
+    }
+}
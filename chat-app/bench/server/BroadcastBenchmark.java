@@ -0,0 +1,59 @@
+// Benchmark for the broadcast fan-out in Server.broadcast / Room.broadcast.
+// BroadcastBenchmark.java compares encode-once frames with the old per-recipient string building.
+
+package server;
+
+import common.Frame;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+// Rummet körs med en "direkt" dispatcher, så hela utskicket görs i benchmark-tråden och mäts.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+    private static final String MESSAGE = "Hello everyone, this is a typical chat line of moderate length!";
+
+    @Param({"10", "1000", "10000"})
+    int recipients;
+
+    private Room room;
+    private List<BenchSession> members;
+    private BenchSession sender;
+
+    @Setup
+    public void setUp() {
+        room = new Room("bench", Runnable::run);
+        members = new ArrayList<>();
+        for (int i = 0; i < recipients; i++) {
+            BenchSession session = new BenchSession("user" + i);
+            room.add(session);
+            members.add(session);
+        }
+        sender = members.get(0);
+    }
+
+    // Samma arbete som Server.broadcast: två Frames per meddelande och ett utskick till rummets medlemmar.
+    @Benchmark
+    public void broadcast() {
+        Frame toSender = Frame.of("You: " + MESSAGE);
+        Frame toOthers = Frame.of(sender.getUsername() + ": " + MESSAGE);
+        room.broadcast(toSender, toOthers, sender);
+    }
+
+    // Det tidigare sättet: en ny sträng och en ny kodning för varje mottagare.
+    @Benchmark
+    public void perRecipientEncoding(Blackhole blackhole) {
+        for (BenchSession member : members) {
+            String line = member == sender ? "You: " + MESSAGE : sender.getUsername() + ": " + MESSAGE;
+            blackhole.consume((line + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
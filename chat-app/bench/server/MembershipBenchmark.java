@@ -0,0 +1,58 @@
+// Benchmark for building and sending member lists (MembershipPublisher).
+// MembershipBenchmark.java measures one join plus one leave in a room of N members.
+
+package server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// deltaClients=false motsvarar äldre klienter som får hela "MEMBERS:"-listan vid varje ändring,
+// deltaClients=true klienter som bara får "JOIN:"/"LEAVE:".
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MembershipBenchmark {
+    @Param({"10", "1000", "10000"})
+    int members;
+
+    @Param({"false", "true"})
+    boolean deltaClients;
+
+    private MembershipPublisher publisher;
+
+    @Setup
+    public void setUp() {
+        ClientRegistry registry = new ClientRegistry();
+        // Utan publicerarens egen tråd: allt utskick sker i flush() nedan, i den tråd som mäts.
+        publisher = new MembershipPublisher(registry);
+        for (int i = 0; i < members; i++) {
+            BenchSession session = new BenchSession("user" + i);
+            if (deltaClients) {
+                session.getCapabilities().add(MembershipPublisher.DELTA_CAPABILITY);
+            }
+            registry.add(session);
+            registry.bindUsername(session);
+            publisher.joined(session.getUsername());
+        }
+        publisher.flush();
+    }
+
+    // En klient ansluter och kopplar ner; båda ändringarna skickas till alla.
+    @Benchmark
+    public void joinAndLeave() {
+        publisher.joined("churn");
+        publisher.flush();
+        publisher.left("churn");
+        publisher.flush();
+    }
+
+    // Bygger hela listan i det äldre formatet, "MEMBERS:alice,bob,".
+    @Benchmark
+    public String membersLine() {
+        return publisher.membersLine();
+    }
+}
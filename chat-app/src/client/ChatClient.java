@@ -0,0 +1,335 @@
+// GUI-free client core: connects, performs the handshake, sends lines and delivers incoming ones to a listener.
+// ChatClient.java is used by the Swing client (Client.java) and by the load generator (LoadGenerator.java).
+// Klientens kärna utan grafiskt gränssnitt.
+
+package client;
+
+import common.WireProtocol;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.*;
+
+public class ChatClient implements Closeable {
+    public static final String USERNAME_PROMPT = "Enter your username:";
+
+    // Protokollet som klienten använder efter hälsningen (se common/WireProtocol.java).
+    public enum Protocol {
+        TEXT,       // En rad per meddelande. Fungerar mot alla serverversioner.
+        V2,         // Ramar med längd och typ; meddelanden får innehålla radbrytningar.
+        V2_DEFLATE  // Som V2, men långa meddelanden komprimeras åt båda hållen.
+    }
+
+    // Tar emot det som servern skickar. Metoderna anropas från klientens läsartråd, inte från Swing-tråden.
+    public interface Listener {
+        // En chattrad, t.ex. "Alice: Hej" eller "You: Hej".
+        void onMessage(String message);
+
+        // Hela medlemslistan har ersatts.
+        default void onMemberList(String[] members) {
+        }
+
+        default void onMemberJoined(String member) {
+        }
+
+        default void onMemberLeft(String member) {
+        }
+
+        // Anslutningen till servern är stängd.
+        default void onDisconnected() {
+        }
+    }
+
+    // En gemensam tråd kontrollerar heartbeats för alla klienter i processen, t.ex. alla i LoadGenerator.
+    private static final ScheduledExecutorService HEARTBEATS = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "chat-client-heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Socket socket;
+    private final OutputStream output;
+    private final PrintWriter out;  // Används med textprotokollet.
+    private final InputStream input;
+    private final String greeting;  // Första raden från servern, normalt USERNAME_PROMPT.
+    private final Protocol protocol;
+    private volatile boolean v2;    // Sätts i login() om servern bad om användarnamn och protocol inte är TEXT.
+    private volatile Listener listener;
+    // Versionen av medlemslistan som lyssnaren har fått. Används bara av läsartråden.
+    private long membersVersion = -1;
+    // Heartbeat: efter pingAfterMillis utan något från servern skickas "/ping"; kommer inget inom
+    // timeoutMillis efter det räknas servern som borta och anslutningen stängs.
+    private long pingAfterMillis = 20_000;
+    private long timeoutMillis = 10_000;
+    private volatile long lastReceived = System.nanoTime();
+    private volatile boolean pingSent;
+    private long pings;     // Används bara av heartbeat-tråden.
+    private ScheduledFuture<?> heartbeat;
+
+    // Ansluter med textprotokollet och läser serverns första rad. Inloggningen görs sedan med login().
+    public ChatClient(String host, int port) throws IOException {
+        this(host, port, Protocol.TEXT);
+    }
+
+    public ChatClient(String host, int port, Protocol protocol) throws IOException {
+        this.protocol = protocol;
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        output = new BufferedOutputStream(socket.getOutputStream());
+        // Servern kodar alltid i UTF-8, så klienten gör detsamma oavsett plattformens standardteckenkodning.
+        out = new PrintWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8), true);
+        input = new BufferedInputStream(socket.getInputStream());
+        // Hälsningen är alltid en textrad. Den läses byte för byte, så att inget av det som kommer efter
+        // (som kan vara v2-ramar) hamnar i någon annan buffert.
+        greeting = readGreeting(input);
+    }
+
+    // true om servern bad om ett användarnamn.
+    public boolean isUsernameRequested() {
+        return USERNAME_PROMPT.equals(greeting);
+    }
+
+    public String getGreeting() {
+        return greeting;
+    }
+
+    // Ändrar tiderna för heartbeat. Anropas före login().
+    public void setHeartbeat(long pingAfterMillis, long timeoutMillis) {
+        this.pingAfterMillis = pingAfterMillis;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    // Skickar användarnamnet och startar läsartråden som levererar allt inkommande till lyssnaren.
+    public void login(String username, Listener listener) {
+        this.listener = listener;
+        if (isUsernameRequested()) {
+            if (username == null || username.trim().isEmpty()) {
+                throw new IllegalArgumentException("Username must not be empty");
+            }
+            if (protocol != Protocol.TEXT) {
+                // Handskakningen för v2; därefter är användarnamnet den första ramen.
+                int flags = protocol == Protocol.V2_DEFLATE ? WireProtocol.FLAG_DEFLATE : 0;
+                synchronized (output) {
+                    try {
+                        output.write(WireProtocol.preface(flags));
+                    } catch (IOException e) {
+                        // Läsartråden märker att anslutningen är stängd.
+                    }
+                }
+                v2 = true;
+                writeFrame(WireProtocol.CONTROL, username);
+            } else {
+                out.println(username);
+            }
+            // Ber servern om medlemsändringar (JOIN:/LEAVE:) i stället för hela listan vid varje ändring,
+            // och om "PING" när klienten varit tyst en stund.
+            send("/caps members-delta heartbeat");
+        }
+        lastReceived = System.nanoTime();
+        heartbeat = HEARTBEATS.scheduleAtFixedRate(this::checkHeartbeat, 1, 1, TimeUnit.SECONDS);
+        Thread reader = new Thread(this::readLoop, "chat-client-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    // Skickar en rad till servern. Kan anropas från vilken tråd som helst.
+    // Med v2 skickas rader som börjar med "/" som kommandon (CONTROL), allt annat som chatt.
+    public void send(String message) {
+        if (v2) {
+            writeFrame(message.startsWith("/") ? WireProtocol.CONTROL : WireProtocol.CHAT, message);
+        } else {
+            out.println(message);
+        }
+    }
+
+    // Skriver en v2-ram. Precis som PrintWriter kastar den inga fel; läsartråden märker att anslutningen är stängd.
+    private void writeFrame(byte type, String text) {
+        byte[] frame = WireProtocol.encode(type, text, protocol == Protocol.V2_DEFLATE);
+        synchronized (output) {
+            try {
+                output.write(frame);
+                output.flush();
+            } catch (IOException e) {
+                // Se ovan.
+            }
+        }
+    }
+
+    // Kopplar ner från servern.
+    @Override
+    public void close() {
+        stopHeartbeat();
+        // Före login() skulle servern tolka "/disconnect" som användarnamnet; då räcker det att stänga socketen.
+        if (listener != null) {
+            send("/disconnect");
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void readLoop() {
+        try {
+            if (v2) {
+                DataInputStream frames = new DataInputStream(input);
+                WireProtocol.Message message;
+                while ((message = WireProtocol.read(frames)) != null) {
+                    received();
+                    handleFrame(message);
+                }
+            } else {
+                BufferedReader in = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+                String message;
+                while ((message = in.readLine()) != null) {
+                    received();
+                    handleLine(message);
+                }
+            }
+        } catch (IOException e) {
+            if (!socket.isClosed()) {
+                e.printStackTrace();
+            }
+        } finally {
+            stopHeartbeat();
+            listener.onDisconnected();
+        }
+    }
+
+    private void received() {
+        lastReceived = System.nanoTime();
+        pingSent = false;
+    }
+
+    // Körs en gång per sekund i HEARTBEATS-tråden.
+    private void checkHeartbeat() {
+        long idleMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastReceived);
+        if (idleMillis >= pingAfterMillis + timeoutMillis) {
+            // Servern svarar inte. Läsartråden avbryts när socketen stängs och anropar onDisconnected.
+            stopHeartbeat();
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        } else if (idleMillis >= pingAfterMillis && !pingSent) {
+            pingSent = true;
+            send("/ping " + ++pings);
+        }
+    }
+
+    private void stopHeartbeat() {
+        ScheduledFuture<?> task = heartbeat;
+        if (task != null) {
+            task.cancel(false);
+        }
+    }
+
+    // "PING <n>" och "PONG <n>" från servern. En chattrad har alltid "namn: " först, så den kan inte se ut så här.
+    private static boolean isHeartbeat(String message) {
+        return (message.startsWith("PING ") || message.startsWith("PONG "))
+                && message.length() > 5 && message.substring(5).chars().allMatch(Character::isDigit);
+    }
+
+    // Servern vill veta att klienten lever och får svar direkt. PONG behöver inget svar;
+    // att något kom räcker för att heartbeat ska vara nöjd.
+    private void handleHeartbeat(String message) {
+        if (message.startsWith("PING ")) {
+            send("/pong " + message.substring(5));
+        }
+    }
+
+    // Med v2 avgör ramtypen vad meddelandet är, så inget behöver gissas utifrån textens början.
+    // En MEMBERSHIP-ram kan innehålla flera ändringar, en per rad.
+    private void handleFrame(WireProtocol.Message message) {
+        if (message.type == WireProtocol.CONTROL && isHeartbeat(message.text)) {
+            handleHeartbeat(message.text);
+            return;
+        }
+        if (message.type != WireProtocol.MEMBERSHIP) {
+            listener.onMessage(message.text);
+            return;
+        }
+        for (String line : message.text.split("\n")) {
+            if (line.startsWith("MEMBERS:")) {
+                listener.onMemberList(parseMemberList(line.substring(8)));
+            } else if (isMembershipUpdate(line)) {
+                applyMembershipUpdate(line);
+            }
+        }
+    }
+
+    private void handleLine(String message) {
+        if (isHeartbeat(message)) {
+            handleHeartbeat(message);
+            return;
+        }
+        // Om meddelandet börjar med "MEMBERS:" är det hela medlemslistan i det äldre formatet.
+        if (message.startsWith("MEMBERS:")) {
+            listener.onMemberList(parseMemberList(message.substring(8)));
+        // SNAPSHOT:, JOIN: och LEAVE: är versionerade medlemsändringar (se server/MembershipPublisher.java).
+        } else if (isMembershipUpdate(message)) {
+            applyMembershipUpdate(message);
+        } else {
+            listener.onMessage(message);
+        }
+    }
+
+    // Delar upp "alice,bob," i namnen. Tomma namn tas bort av mottagaren.
+    public static String[] parseMemberList(String members) {
+        return members.split(",");
+    }
+
+    private static boolean isMembershipUpdate(String message) {
+        if (!message.startsWith("SNAPSHOT:") && !message.startsWith("JOIN:") && !message.startsWith("LEAVE:")) {
+            return false;
+        }
+        // Formatet är TYP:version:data. Ett chattmeddelande från en användare som heter "JOIN" har inget versionsnummer.
+        String[] parts = message.split(":", 3);
+        return parts.length == 3 && !parts[1].isEmpty() && parts[1].chars().allMatch(Character::isDigit);
+    }
+
+    // Tillämpar en snapshot eller en ändring på medlemslistan utan att bygga om hela listan.
+    private void applyMembershipUpdate(String message) {
+        String[] parts = message.split(":", 3);
+        long version = Long.parseLong(parts[1]);
+        String data = parts[2];
+        if (parts[0].equals("SNAPSHOT")) {
+            membersVersion = version;
+            listener.onMemberList(parseMemberList(data));
+            return;
+        }
+        if (membersVersion < 0 || version <= membersVersion) {
+            // Ingen snapshot än, eller så är ändringen redan med i den.
+            return;
+        }
+        if (version != membersVersion + 1) {
+            // Ändringar har gått förlorade, t.ex. för att klienten inte hann läsa. Begär en ny snapshot.
+            membersVersion = -1;
+            send("/members");
+            return;
+        }
+        membersVersion = version;
+        if (parts[0].equals("JOIN")) {
+            listener.onMemberJoined(data);
+        } else {
+            listener.onMemberLeft(data);
+        }
+    }
+
+    // Läser en rad från servern, avslutad med '\n'. Ett avslutande '\r' tas bort.
+    private static String readGreeting(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            line.write(b);
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        String text = new String(line.toByteArray(), StandardCharsets.UTF_8);
+        return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+    }
+}
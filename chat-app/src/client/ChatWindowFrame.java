@@ -3,12 +3,19 @@
 package client;
 
 import javax.swing.*;
+import javax.swing.text.*;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 // ChatWindowFrame är en klass som ärver från JFrame och representerar huvudfönstret i chattapplikationen
 public class ChatWindowFrame extends JFrame {
+    private static final int MAX_LINES = 5000;      // Så många rader sparas i fönstret; äldre rader tas bort.
+    private static final int REPAINT_MILLIS = 50;   // Inkomna meddelanden visas högst 20 gånger per sekund.
+
     // Deklarera komponenter som används i GUI
     private JTextArea messageArea;  // Område där mottagna meddelanden visas
     private DefaultListModel<String> memberListModel;   // Modellen som håller data för listan över medlemmar
@@ -16,6 +23,10 @@ public class ChatWindowFrame extends JFrame {
     private JTextField messageField;    // Fält där användaren skriver meddelanden
     private JButton disconnectButton;   // Knapp för att koppla från chatten
     private SendMessageListener sendMessageListener;    // Lyssnare för att skicka meddelanden
+    // Meddelanden som tagits emot men ännu inte visats. Fylls av nätverkstråden och töms av repaintTimer på EDT.
+    private final Queue<String> pendingLines = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final Timer repaintTimer;   // javax.swing.Timer, körs på EDT.
 
     // Konstruktor för ChatWindowFrame
     public ChatWindowFrame() {
@@ -86,6 +97,15 @@ public class ChatWindowFrame extends JFrame {
         add(splitPane, BorderLayout.CENTER);
         add(inputPanel, BorderLayout.SOUTH);
 
+        // Väntande meddelanden läggs till i en omgång per tick, i stället för en append och en omritning per meddelande.
+        repaintTimer = new Timer(REPAINT_MILLIS, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                showPendingLines();
+            }
+        });
+        repaintTimer.start();
+
         // Gör fönstret synligt
         setVisible(true);
     }
@@ -123,16 +143,48 @@ public class ChatWindowFrame extends JFrame {
             sendMessageListener.onSendMessage("/disconnect");   // Meddelandet skickas till servern för att indikera att klienten vill koppla bort från servern.
         }
         // Stänger fönstret för chatten
+        repaintTimer.stop();
         dispose(); // Metoden dispose är en del av JFrame-klassen (som ChatWindowFrame ärver från)
     }
 
     // Metod för att visa meddelanden som tas emot på chattfönstret.
     // sender parameter: En sträng som representerar avsändarens namn eller användarnamn.
     // message parameter: En sträng som innehåller själva meddelandet som skickats av avsändaren.
+    // Kan anropas från vilken tråd som helst, t.ex. nätverkstråden. Raden köas och visas vid nästa tick av repaintTimer.
     public void receiveMessage(String sender, String message) { // Användaren "Alice" skickar ett meddelande "Hello" => receiveMessage("Alice", "Hello");
-        // Lägger till Meddelandet i messageArea
-        // messageArea är en JTextArea där alla meddelanden visas
-        messageArea.append(sender + ": " + message + "\n"); // Metoden append lägger till text i slutet av det som redan finns i messageArea.
+        pendingLines.add(sender + ": " + message);
+        // Hinner EDT inte med behövs bara de senaste MAX_LINES raderna; äldre rader skulle ändå tas bort direkt.
+        if (pendingCount.incrementAndGet() > MAX_LINES && pendingLines.poll() != null) {
+            pendingCount.decrementAndGet();
+        }
+    }
+
+    // Körs på EDT. Lägger till alla väntande rader med en enda append och tar sedan bort de äldsta raderna
+    // så att messageArea aldrig har fler än MAX_LINES rader.
+    private void showPendingLines() {
+        if (pendingLines.isEmpty()) {
+            return;
+        }
+        StringBuilder batch = new StringBuilder();
+        String line;
+        while ((line = pendingLines.poll()) != null) {
+            pendingCount.decrementAndGet();
+            batch.append(line).append('\n');
+        }
+        // Metoden append lägger till text i slutet av det som redan finns i messageArea.
+        messageArea.append(batch.toString());
+
+        // Den sista raden i dokumentet är alltid tom (efter sista radbrytningen), därav - 1.
+        Document document = messageArea.getDocument();
+        Element root = document.getDefaultRootElement();
+        int excess = root.getElementCount() - 1 - MAX_LINES;
+        if (excess > 0) {
+            try {
+                document.remove(0, root.getElement(excess - 1).getEndOffset());
+            } catch (BadLocationException e) {
+                e.printStackTrace();
+            }
+        }
     }
 
     // Metod för att uppdatera listan över medlemmar som visas i chattfönstret.
@@ -148,5 +200,16 @@ public class ChatWindowFrame extends JFrame {
             }
         }
     }
-}
 
+    // Metod för att lägga till en medlem som just anslutit, utan att bygga om hela listan.
+    public void addMember(String member) {
+        if (!member.isEmpty()) {
+            memberListModel.addElement(member);
+        }
+    }
+
+    // Metod för att ta bort en medlem som lämnat chatten. Har flera medlemmar samma namn tas bara en bort.
+    public void removeMember(String member) {
+        memberListModel.removeElement(member);
+    }
+}
@@ -0,0 +1,135 @@
+// Load generator that simulates many chat users against a running Server.
+// LoadGenerator.java opens many ChatClient connections, sends at a fixed rate and measures end-to-end latency.
+// Simulerar många användare mot servern och mäter genomströmning och latens.
+
+package client;
+
+import common.LatencyHistogram;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Exempel: java client.LoadGenerator --clients=500 --rate=2 --duration=30
+// --protocol=text (standard), v2 eller v2-deflate väljer protokoll för alla klienter.
+//
+// Varje klient skickar "LG <körning> <klient> <skickad nanoTime>" med --rate meddelanden per sekund.
+// När en annan klient tar emot raden räknas latensen från sändning till mottagning.
+// Alla klienter körs i samma JVM, så System.nanoTime() är jämförbar mellan sändare och mottagare.
+public class LoadGenerator {
+    private final String host;
+    private final int port;
+    private final int clients;
+    private final double rate;          // Meddelanden per sekund och klient.
+    private final int durationSeconds;
+    private final int warmupSeconds;    // Latenser under uppvärmningen räknas inte.
+    private final String room;          // null = standardrummet.
+    private final ChatClient.Protocol protocol;
+    private final String runId = Long.toHexString(System.nanoTime());  // Skiljer våra meddelanden från t.ex. historik.
+
+    private final LatencyHistogram latencyMicros = new LatencyHistogram();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private volatile boolean measuring;
+
+    public LoadGenerator(String host, int port, int clients, double rate, int durationSeconds, int warmupSeconds, String room,
+                         ChatClient.Protocol protocol) {
+        this.host = host;
+        this.port = port;
+        this.clients = clients;
+        this.rate = rate;
+        this.durationSeconds = durationSeconds;
+        this.warmupSeconds = warmupSeconds;
+        this.room = room;
+        this.protocol = protocol;
+    }
+
+    public void run() throws IOException, InterruptedException {
+        List<ChatClient> connections = new ArrayList<>();
+        System.out.println("Connecting " + clients + " clients to " + host + ":" + port + "...");
+        for (int i = 0; i < clients; i++) {
+            ChatClient client = new ChatClient(host, port, protocol);
+            client.login("load-" + runId + "-" + i, this::onMessage);
+            if (room != null) {
+                client.send("/join " + room);
+            }
+            connections.add(client);
+        }
+
+        // Sändningarna sprids ut jämnt över tiden i stället för att alla klienter skickar samtidigt.
+        ScheduledExecutorService senders = Executors.newScheduledThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+        long periodNanos = (long) (1_000_000_000L / rate);
+        for (int i = 0; i < connections.size(); i++) {
+            ChatClient client = connections.get(i);
+            String prefix = "LG " + runId + " " + i + " ";
+            long initialDelay = periodNanos * i / connections.size();
+            senders.scheduleAtFixedRate(() -> {
+                client.send(prefix + System.nanoTime());
+                sent.increment();
+            }, initialDelay, periodNanos, TimeUnit.NANOSECONDS);
+        }
+
+        Thread.sleep(warmupSeconds * 1000L);
+        sent.reset();
+        received.reset();
+        latencyMicros.reset();
+        measuring = true;
+        long start = System.nanoTime();
+        for (int second = 1; second <= durationSeconds; second++) {
+            Thread.sleep(1000);
+            if (second % 5 == 0 || second == durationSeconds) {
+                report(System.nanoTime() - start);
+            }
+        }
+        measuring = false;
+
+        senders.shutdownNow();
+        for (ChatClient client : connections) {
+            client.close();
+        }
+    }
+
+    // Anropas från klienternas läsartrådar. Egna meddelanden ("You: ...") och andras trafik räknas inte.
+    private void onMessage(String message) {
+        long now = System.nanoTime();
+        int marker = message.indexOf(": LG " + runId + " ");
+        if (marker < 0 || !measuring) {
+            return;
+        }
+        if (message.startsWith("You: ")) {
+            return;
+        }
+        long sentAt = Long.parseLong(message.substring(message.lastIndexOf(' ') + 1));
+        latencyMicros.record((now - sentAt) / 1000);
+        received.increment();
+    }
+
+    private void report(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf("%5.1fs  sent %8.0f msg/s  delivered %10.0f msg/s  latency us p50=%d p90=%d p99=%d p99.9=%d max=%d%n",
+                seconds, sent.sum() / seconds, received.sum() / seconds,
+                latencyMicros.percentile(50), latencyMicros.percentile(90), latencyMicros.percentile(99),
+                latencyMicros.percentile(99.9), latencyMicros.max());
+    }
+
+    // Tolkar argument på formen --namn=värde.
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        new LoadGenerator(
+                options.getOrDefault("host", "localhost"),
+                Integer.parseInt(options.getOrDefault("port", "12345")),
+                Integer.parseInt(options.getOrDefault("clients", "100")),
+                Double.parseDouble(options.getOrDefault("rate", "1")),
+                Integer.parseInt(options.getOrDefault("duration", "30")),
+                Integer.parseInt(options.getOrDefault("warmup", "5")),
+                options.get("room"),
+                ChatClient.Protocol.valueOf(options.getOrDefault("protocol", "text").toUpperCase().replace('-', '_'))).run();
+    }
+}
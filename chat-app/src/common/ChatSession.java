@@ -0,0 +1,44 @@
+// The interface shared by every kind of client connection on the server side.
+// ChatSession.java lets Server broadcast to both thread-based and NIO-based connections.
+// Gemensamt gränssnitt för alla klientanslutningar på serversidan.
+
+package common;
+
+import java.util.Set;
+
+// Server.broadcast och MembershipPublisher arbetar bara mot detta interface,
+// så att både ClientHandler (en tråd per klient) och NioConnection (selector-läge) kan ligga i samma lista.
+public interface ChatSession {
+    // Köar en färdigkodad rad till klienten. Får inte blockera anroparen.
+    // Samma Frame kan skickas till många klienter, se Server.broadcast.
+    void send(Frame frame);
+
+    // Köar en rad text till klienten. Används för meddelanden som bara går till en mottagare.
+    default void sendMessage(String message) {
+        send(Frame.of(message));
+    }
+
+    // Köar ett svar från servern som inte är ett chattmeddelande, t.ex. "You joined #lobby".
+    // v2-klienter får det som en CONTROL-ram; textklienter ser ingen skillnad.
+    default void sendControl(String message) {
+        send(Frame.of(WireProtocol.CONTROL, message));
+    }
+
+    // Returnerar klientens användarnamn, eller null om handskakningen inte är klar än.
+    String getUsername();
+
+    // Antal meddelanden som väntar i klientens utgående kö.
+    int getQueueDepth();
+
+    // Antal meddelanden som kastats för att klienten inte hann läsa dem.
+    long getDroppedMessages();
+
+    // Protokolltillägg som klienten anmält med "/caps", t.ex. "members-delta". Mängden är trådsäker.
+    Set<String> getCapabilities();
+
+    // System.nanoTime() när klienten senast skickade något. Används för att hitta döda anslutningar.
+    long getLastActivity();
+
+    // Stänger anslutningen. Får anropas från vilken tråd som helst.
+    void disconnect();
+}
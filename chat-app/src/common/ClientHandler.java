@@ -6,48 +6,90 @@
 
 package common;
 
+import server.ClientRegistry;
 import server.Server;
+import server.ServerLog;
 
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.*;
 
-public class ClientHandler implements Runnable {    // klassen implementerar Runnable-interface, vilket betyder att dess instanser kan köras i en separat tråd.
+public class ClientHandler implements Runnable, ChatSession {    // klassen implementerar Runnable-interface, vilket betyder att dess instanser kan köras i en separat tråd.
     private Socket socket;  // Håller referensen till klientens socket-anslutning
-    private PrintWriter out;    // För att skicka meddelanden till klienten.
-    private BufferedReader in;  // För att läsa meddelanden från klienten.
-    private String username;    // Sparar klientens användarnamn.
-    private Set<ClientHandler> clientHandlers;  // En referens till den gemensamma listan över alla anslutna klienter.
+    private OutputStream out;    // För att skicka meddelanden till klienten. Raderna är redan kodade (se Frame).
+    private BufferedReader in;  // För att läsa meddelanden från en textklient.
+    private DataInputStream frameIn;    // För att läsa ramar från en v2-klient (se WireProtocol.java). null för textklienter.
+    private byte messageType;   // Ramtypen för det senast lästa meddelandet från en v2-klient, 0 för en textrad.
+    private volatile boolean v2;        // Klienten använder protokoll v2. Sätts innan något annat än hälsningen skickas.
+    private volatile boolean deflate;   // Klienten klarar komprimerade ramar.
+    private volatile String username;    // Sparar klientens användarnamn. Läses även av andra klienters trådar.
+    private ClientRegistry clientHandlers;  // En referens till den gemensamma listan över alla anslutna klienter.
+    // Utgående meddelanden. broadcast lägger bara till i kön, en egen skrivartråd skriver till socketen.
+    // En långsam klient fyller då bara sin egen kö i stället för att blockera avsändarens tråd.
+    private final OutboundQueue<Frame> outbound;
+    private final Executor writerExecutor;  // Startar skrivartråden (plattform eller virtuell, samma som läsartråden).
+    private volatile Thread writerThread;
+    private volatile boolean closed;
+    private volatile long lastActivity = System.nanoTime();  // Senast något lästes från klienten (se HeartbeatMonitor).
+    private final Set<String> capabilities = ConcurrentHashMap.newKeySet();  // Protokolltillägg som klienten anmält.
+    private final RateLimiter rateLimiter;  // Begränsar inkommande meddelanden. null om begränsningen är avstängd.
 
     // Konstruktorn initialiserar socket och clientHandlers med de värden som skickas som argument när en ny ClientHandler skapas.
-    public ClientHandler(Socket socket, Set<ClientHandler> clientHandlers) {
+    public ClientHandler(Socket socket, ClientRegistry clientHandlers, OutboundQueue<Frame> outbound, RateLimiter rateLimiter,
+                         Executor writerExecutor) {
         this.socket = socket;
         this.clientHandlers = clientHandlers;
+        this.outbound = outbound;
+        this.rateLimiter = rateLimiter;
+        this.writerExecutor = writerExecutor;
     }
 
     @Override
     public void run() { // run-metoden körs när ClientHandler startas i en ny tråd.
         try {
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream(), true);
+            // Mottagna bytes räknas innan de avkodas, för serverns mätvärden.
+            InputStream input = new BufferedInputStream(new CountingInputStream(socket.getInputStream()));
+            // Ingen autoflush: skrivartråden tömmer kön och flushar en gång per omgång.
+            out = new BufferedOutputStream(socket.getOutputStream());
+            writerExecutor.execute(this::writeLoop);
 
             // FAS 4
             // ClientHandler uppmanar användaren att ange sitt användarnamn.
-            out.println("Enter your username:");
+            sendMessage("Enter your username:");
+            // Klientens svar avgör om den talar text eller v2.
+            detectProtocol(input);
             // Klienten uppmanas att ange sitt användarnamn, som sedan sparas i username.
-            username = in.readLine();
-            Server.broadcastMembers();
-            System.out.println(username + " has joined the chat.");
+            username = readMessage();
+            if (username == null) {
+                return;     // Anslutningen stängdes innan klienten angav något namn.
+            }
+            // Klienten indexeras under sitt användarnamn och medlemslistan skickas ut.
+            Server.memberJoined(this);
+            ServerLog.info("{} has joined the chat.", username);
 
             String message;
             // Medan det finns meddelanden att läsa från klienten, hanteras de.
-            while ((message = in.readLine()) != null) {
+            while ((message = readMessage()) != null) {
+                lastActivity = System.nanoTime();
+                Server.metrics().messageReceived();
+                // En CHAT-ram från en v2-klient är alltid chatt, även om texten börjar med "/".
+                boolean chat = messageType == WireProtocol.CHAT;
                 // Om en klient skickar "/disconnect", stänger ClientHandler anslutningen och tar bort klienten från serverns klientlista.
-                if (message.equals("/disconnect")) {
+                if (!chat && message.equals("/disconnect")) {
                     break;
                 }
+                // En klient som skickar för fort får sina meddelanden kastade här, innan de når rummet.
+                if (Server.throttle(this, rateLimiter)) {
+                    continue;
+                }
+                // Protokollkommandon som "/caps" hanteras av servern och skickas inte vidare som chatt.
+                if (!chat && Server.handleCommand(this, message)) {
+                    continue;
+                }
                 // Servern skriver till konsolen: "Received from Alice: Hello, Bob!".
-                System.out.println("Received from " + username + ": " + message);
+                ServerLog.message("Received from {}: {}", username, message);
                 // ClientHandler på serversidan tar emot meddelandet och sänder det till alla andra klienter
                 // När en Klient skickar ett meddelande, tas det emot av ClientHandler.java
                 // Server.broadcast används för att sända meddelandet till alla andra klienter
@@ -55,26 +97,155 @@ public class ClientHandler implements Runnable {    // klassen implementerar Run
                 Server.broadcast(message, username, this);
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            ServerLog.error("Connection error for {}", username, e);
         } finally {
             // I finally-blocket stängs socketen och klienten tas bort från serverns lista.
+            closed = true;
+            Thread writer = writerThread;
+            if (writer != null) {
+                writer.interrupt();
+            }
+            outbound.clear();
             try {
                 socket.close();
             } catch (IOException e) {
-                e.printStackTrace();
+                ServerLog.error("Could not close socket of {}", username, e);
             }
             Server.removeClient(this);
-            System.out.println(username + " has left the chat.");
+            ServerLog.info("{} has left the chat.", username);
+        }
+    }
+
+    // En textklient svarar på hälsningen med sitt användarnamn, en v2-klient med WireProtocol.PREFACE,
+    // som börjar med byte 0. Första byten läses utan att förbrukas och avgör vilket protokoll som används.
+    private void detectProtocol(InputStream input) throws IOException {
+        input.mark(1);
+        int first = input.read();
+        input.reset();
+        if (first == 0) {
+            deflate = (WireProtocol.readPreface(input) & WireProtocol.FLAG_DEFLATE) != 0;
+            frameIn = new DataInputStream(input);
+            v2 = true;
+        } else {
+            in = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+        }
+    }
+
+    // Nästa rad från en textklient eller nästa ram från en v2-klient. null när klienten stängt anslutningen.
+    private String readMessage() throws IOException {
+        if (frameIn == null) {
+            return in.readLine();
+        }
+        WireProtocol.Message message = WireProtocol.read(frameIn);
+        if (message == null) {
+            return null;
+        }
+        messageType = message.type;
+        return message.text;
+    }
+
+    // Denna metod lägger meddelandet i klientens utgående kö utan att blockera.
+    // Om kön är full gäller köns policy; med DISCONNECT kopplas klienten ner.
+    @Override
+    public void send(Frame frame) {
+        if (closed) {
+            return;
+        }
+        if (!outbound.offer(frame)) {
+            closed = true;
+            Server.metrics().slowClientDisconnected();
+            ServerLog.warn("Disconnecting slow client {} ({} queued messages).", username, outbound.depth());
+            disconnect();
+        }
+    }
+
+    // Skrivartrådens loop: väntar på meddelanden, skriver allt som ligger i kön och flushar sedan en gång.
+    // Hur lång tid varje omgång tar registreras; en omgång som blockerar länge betyder att klienten inte hinner läsa.
+    private void writeLoop() {
+        writerThread = Thread.currentThread();
+        try {
+            while (!closed) {
+                Frame frame = outbound.take();
+                long start = System.nanoTime();
+                long bytes = 0;
+                do {
+                    // Samma Frame kan ha kodats för andra mottagare redan; kodningen delas (se Frame.v2Bytes).
+                    byte[] encoded = v2 ? frame.v2Bytes(deflate) : frame.bytes();
+                    out.write(encoded);
+                    bytes += encoded.length;
+                } while ((frame = outbound.poll()) != null);
+                out.flush();
+                Server.metrics().bytesWritten(bytes);
+                Server.metrics().writeDone(System.nanoTime() - start);
+            }
+        } catch (InterruptedException e) {
+            // Klienten har kopplats ner.
+        } catch (IOException e) {
+            // Skrivningen misslyckades, klienten är borta. Läsartråden städar upp.
+            disconnect();
         }
     }
 
-    // Denna metod skickar ett meddelande till klienten genom att skriva det till PrintWriter out.
-    public void sendMessage(String message) {
-        out.println(message);
+    @Override
+    public Set<String> getCapabilities() {
+        return capabilities;
+    }
+
+    // Antal meddelanden som väntar i klientens utgående kö.
+    @Override
+    public int getQueueDepth() {
+        return outbound.depth();
+    }
+
+    // Antal meddelanden som kastats för att klienten inte hann läsa dem.
+    @Override
+    public long getDroppedMessages() {
+        return outbound.dropped();
+    }
+
+    @Override
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    // Stänger klientens socket, t.ex. när servern stängs ner. readLine() i run() avbryts då och klienten tas bort i finally-blocket.
+    @Override
+    public void disconnect() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            ServerLog.error("Could not close socket of {}", username, e);
+        }
     }
 
     // Denna metod returnerar användarnamnet för klienten.
+    @Override
     public String getUsername() {
         return username;
     }
+
+    // Räknar bytes som läses från socketen.
+    private static final class CountingInputStream extends FilterInputStream {
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                Server.metrics().bytesRead(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                Server.metrics().bytesRead(read);
+            }
+            return read;
+        }
+    }
 }
@@ -0,0 +1,91 @@
+// A pre-encoded outgoing line that can be shared by many connections.
+// Frame.java lets the server encode a message once and hand the same bytes to every recipient.
+// En färdigkodad rad som delas mellan alla mottagare av ett meddelande.
+
+package common;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+// Tidigare byggde broadcast en ny sträng per mottagare och varje PrintWriter kodade den till bytes igen.
+// En Frame kodas till UTF-8 en gång och samma byte-array skickas sedan till alla anslutningar.
+// Frame är oföränderlig; ingen får ändra innehållet i bytes() efter att den skapats.
+//
+// Textklienter får bytes(). Klienter med protokoll v2 (se WireProtocol.java) får v2Bytes(), som kodas
+// första gången någon mottagare behöver den och sedan delas på samma sätt.
+public final class Frame {
+    private final byte type;        // Ramtyp i v2, t.ex. WireProtocol.CHAT.
+    private final String payload;   // Originaltexten. Radbrytningar behålls i v2.
+    private final String text;  // Raden (eller raderna) utan avslutande radbrytning.
+    private final byte[] bytes; // Raden kodad i UTF-8, avslutad med '\n'.
+    // v2-kodningarna, utan och med komprimering. Två trådar kan råka koda samtidigt; resultatet är detsamma.
+    private volatile byte[] v2Plain;
+    private volatile byte[] v2Deflated;
+
+    private Frame(byte type, String payload, String text, byte[] bytes) {
+        this.type = type;
+        this.payload = payload;
+        this.text = text;
+        this.bytes = bytes;
+    }
+
+    // Kodar en textrad som chattmeddelande.
+    public static Frame of(String text) {
+        return of(WireProtocol.CHAT, text);
+    }
+
+    // Kodar en textrad. Radbrytningar i texten skulle dela upp den i flera rader hos en textklient,
+    // därför ersätts de med mellanslag i bytes(). v2-klienter får texten som den är.
+    public static Frame of(byte type, String text) {
+        String line = text.indexOf('\n') >= 0 || text.indexOf('\r') >= 0
+                ? text.replace("\r\n", " ").replace('\n', ' ').replace('\r', ' ')
+                : text;
+        byte[] encoded = line.getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = new byte[encoded.length + 1];
+        System.arraycopy(encoded, 0, bytes, 0, encoded.length);
+        bytes[encoded.length] = '\n';
+        return new Frame(type, text, line, bytes);
+    }
+
+    // Kodar flera rader till en Frame, t.ex. en grupp medlemsändringar som ska skickas tillsammans.
+    // I v2 blir det en enda ram med en rad per ändring.
+    public static Frame ofLines(byte type, List<String> lines) {
+        StringBuilder text = new StringBuilder();
+        for (String line : lines) {
+            if (text.length() > 0) {
+                text.append('\n');
+            }
+            text.append(of(line).text());
+        }
+        byte[] bytes = (text + "\n").getBytes(StandardCharsets.UTF_8);
+        return new Frame(type, text.toString(), text.toString(), bytes);
+    }
+
+    public byte type() {
+        return type;
+    }
+
+    public String text() {
+        return text;
+    }
+
+    // Den kodade raden. Delas mellan alla mottagare och får inte ändras.
+    public byte[] bytes() {
+        return bytes;
+    }
+
+    // Samma meddelande som en v2-ram, komprimerad om deflate är true och meddelandet är tillräckligt långt.
+    // Delas mellan alla mottagare och får inte ändras.
+    public byte[] v2Bytes(boolean deflate) {
+        byte[] encoded = deflate ? v2Deflated : v2Plain;
+        if (encoded == null) {
+            encoded = WireProtocol.encode(type, payload, deflate);
+            if (deflate) {
+                v2Deflated = encoded;
+            } else {
+                v2Plain = encoded;
+            }
+        }
+        return encoded;
+    }
+}
@@ -0,0 +1,75 @@
+// A bounded queue of outgoing messages for one client connection.
+// OutboundQueue.java decouples broadcast from slow clients: senders enqueue, a writer drains.
+// Begränsad utgående kö per klient med en policy för vad som händer när kön är full.
+
+package common;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class OutboundQueue<T> {
+    // Vad som händer när en klient inte hinner läsa och kön blir full.
+    public enum OverflowPolicy {
+        DROP_OLDEST,    // Det äldsta meddelandet i kön kastas för att ge plats åt det nya.
+        DROP_NEWEST,    // Det nya meddelandet kastas.
+        DISCONNECT      // Klienten kopplas ner.
+    }
+
+    private final BlockingQueue<T> queue;
+    private final OverflowPolicy policy;
+    private final AtomicLong dropped = new AtomicLong();   // Antal meddelanden som kastats för den här klienten.
+
+    public OutboundQueue(int capacity, OverflowPolicy policy) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.policy = policy;
+    }
+
+    // Lägger till ett meddelande utan att blockera avsändaren.
+    // Returnerar false om kön är full och policyn är DISCONNECT; anroparen ska då koppla ner klienten.
+    public boolean offer(T message) {
+        if (queue.offer(message)) {
+            return true;
+        }
+        switch (policy) {
+            case DROP_OLDEST:
+                while (!queue.offer(message)) {
+                    if (queue.poll() != null) {
+                        dropped.incrementAndGet();
+                    }
+                }
+                return true;
+            case DROP_NEWEST:
+                dropped.incrementAndGet();
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // Väntar tills det finns ett meddelande att skriva. Används av klientens skrivartråd.
+    public T take() throws InterruptedException {
+        return queue.take();
+    }
+
+    // Hämtar nästa meddelande om det finns något, annars null.
+    public T poll() {
+        return queue.poll();
+    }
+
+    public boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    // Antal meddelanden som väntar på att skrivas.
+    public int depth() {
+        return queue.size();
+    }
+
+    public long dropped() {
+        return dropped.get();
+    }
+
+    public void clear() {
+        queue.clear();
+    }
+}
@@ -0,0 +1,44 @@
+// A token bucket that limits how fast one client may send messages.
+// RateLimiter.java is checked for every inbound message before it reaches the server's fan-out.
+// Begränsar hur många meddelanden per sekund en klient får skicka, med utrymme för korta skurar.
+
+package common;
+
+// Hinken rymmer burst polletter och fylls på med rate polletter per sekund. Varje meddelande kostar en pollett;
+// är hinken tom kastas meddelandet. En klient kan alltså skicka burst meddelanden på en gång, men i längden
+// inte fler än rate per sekund.
+//
+// Påfyllningen räknas ut från tiden sedan förra anropet, så det behövs ingen timer och ingen tråd.
+// Varje anslutning har en egen hink som bara används av dess läsartråd (eller event-loop), så inga lås behövs.
+public class RateLimiter {
+    private final double tokensPerNano;
+    private final double burst;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+    private long droppedInRow;  // Meddelanden som kastats sedan det senaste som släpptes igenom.
+
+    public RateLimiter(double ratePerSecond, int burst) {
+        this.tokensPerNano = ratePerSecond / 1_000_000_000.0;
+        this.burst = Math.max(1, burst);
+        this.tokens = this.burst;
+    }
+
+    // Tar en pollett. Returnerar false om hinken är tom och meddelandet ska kastas.
+    public boolean tryAcquire() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - lastRefill) * tokensPerNano);
+        lastRefill = now;
+        if (tokens >= 1) {
+            tokens--;
+            droppedInRow = 0;
+            return true;
+        }
+        droppedInRow++;
+        return false;
+    }
+
+    // 1 för det första kastade meddelandet i en följd. Används för att bara varna avsändaren en gång.
+    public long getDroppedInRow() {
+        return droppedInRow;
+    }
+}
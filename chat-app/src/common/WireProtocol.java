@@ -0,0 +1,167 @@
+// The length-prefixed binary protocol (v2) shared by the server and the client.
+// WireProtocol.java encodes and decodes typed frames, optionally deflate-compressed.
+// Protokoll version 2: varje meddelande skickas som en ram med längd och typ i stället för som en textrad.
+
+package common;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.*;
+
+// Handskakning: servern skickar alltid först textraden "Enter your username:".
+// En klient som vill använda v2 svarar med PREFACE följt av en byte med flaggor (FLAG_DEFLATE om klienten
+// klarar komprimerade ramar). En textklient svarar med sitt användarnamn. Eftersom ett användarnamn aldrig
+// börjar med byte 0 räcker det att servern tittar på första byten för att veta vilket protokoll klienten använder.
+// Båda protokollen fungerar därför på samma port.
+//
+// Efter handskakningen skickas bara ramar åt båda hållen:
+//   [int längd][byte typ][byte flaggor][längd bytes innehåll]
+// Innehållet är UTF-8-text och får innehålla radbrytningar. Med FLAG_DEFLATE är innehållet komprimerat med deflate.
+// Den första ramen från klienten är en CONTROL-ram med användarnamnet.
+public final class WireProtocol {
+    public static final byte[] PREFACE = {0, 'C', 'v', '2'};
+
+    // Ramtyper.
+    public static final byte CHAT = 1;          // Chattmeddelande. Tolkas aldrig som kommando, även om det börjar med "/".
+    public static final byte MEMBERSHIP = 2;    // Medlemslista eller medlemsändringar (MEMBERS:, SNAPSHOT:, JOIN:, LEAVE:), en per rad.
+    public static final byte CONTROL = 3;       // Användarnamn, kommandon som "/join" och serverns svar på dem.
+
+    public static final int FLAG_DEFLATE = 1;
+    public static final int HEADER_LENGTH = 6;
+    public static final int MAX_PAYLOAD = 1024 * 1024;      // Större ramar (före och efter uppackning) stänger anslutningen.
+    public static final int COMPRESS_THRESHOLD = 256;       // Kortare meddelanden komprimeras inte.
+
+    // En avkodad ram.
+    public static final class Message {
+        public final byte type;
+        public final String text;
+
+        public Message(byte type, String text) {
+            this.type = type;
+            this.text = text;
+        }
+    }
+
+    private WireProtocol() {
+    }
+
+    // Handskakningen från en v2-klient.
+    public static byte[] preface(int flags) {
+        byte[] preface = new byte[PREFACE.length + 1];
+        System.arraycopy(PREFACE, 0, preface, 0, PREFACE.length);
+        preface[PREFACE.length] = (byte) flags;
+        return preface;
+    }
+
+    // Läser handskakningen och returnerar klientens flaggor.
+    public static int readPreface(InputStream in) throws IOException {
+        byte[] preface = new byte[PREFACE.length + 1];
+        new DataInputStream(in).readFully(preface);
+        return checkPreface(preface, 0);
+    }
+
+    // Kontrollerar en handskakning som redan lästs in, t.ex. av NioConnection.
+    public static int checkPreface(byte[] bytes, int offset) throws IOException {
+        for (int i = 0; i < PREFACE.length; i++) {
+            if (bytes[offset + i] != PREFACE[i]) {
+                throw new IOException("Unknown protocol preface");
+            }
+        }
+        return bytes[offset + PREFACE.length];
+    }
+
+    // Kodar en ram. Med deflate komprimeras innehåll från COMPRESS_THRESHOLD bytes, om det blir mindre av det.
+    public static byte[] encode(byte type, String text, boolean deflate) {
+        byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        int flags = 0;
+        if (deflate && payload.length >= COMPRESS_THRESHOLD) {
+            byte[] compressed = deflate(payload);
+            if (compressed.length < payload.length) {
+                payload = compressed;
+                flags = FLAG_DEFLATE;
+            }
+        }
+        byte[] frame = new byte[HEADER_LENGTH + payload.length];
+        frame[0] = (byte) (payload.length >>> 24);
+        frame[1] = (byte) (payload.length >>> 16);
+        frame[2] = (byte) (payload.length >>> 8);
+        frame[3] = (byte) payload.length;
+        frame[4] = type;
+        frame[5] = (byte) flags;
+        System.arraycopy(payload, 0, frame, HEADER_LENGTH, payload.length);
+        return frame;
+    }
+
+    // Läser nästa ram. Returnerar null om anslutningen stängdes mellan två ramar.
+    public static Message read(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        checkLength(length);
+        byte type = in.readByte();
+        byte flags = in.readByte();
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return decode(type, flags, payload, 0, length);
+    }
+
+    public static void checkLength(int length) throws IOException {
+        if (length < 0 || length > MAX_PAYLOAD) {
+            throw new IOException("Frame too large: " + length + " bytes");
+        }
+    }
+
+    // Avkodar innehållet i en ram vars huvud redan lästs.
+    public static Message decode(byte type, int flags, byte[] bytes, int offset, int length) throws IOException {
+        if ((flags & FLAG_DEFLATE) != 0) {
+            bytes = inflate(bytes, offset, length);
+            offset = 0;
+            length = bytes.length;
+        }
+        return new Message(type, new String(bytes, offset, length, StandardCharsets.UTF_8));
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 16);
+            byte[] chunk = new byte[4096];
+            while (!deflater.finished()) {
+                out.write(chunk, 0, deflater.deflate(chunk));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    // Packar upp högst MAX_PAYLOAD bytes, så att en liten komprimerad ram inte kan fylla minnet.
+    private static byte[] inflate(byte[] data, int offset, int length) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, offset, length);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length * 3);
+            byte[] chunk = new byte[4096];
+            while (!inflater.finished()) {
+                int inflated = inflater.inflate(chunk);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated compressed frame");
+                }
+                out.write(chunk, 0, inflated);
+                if (out.size() > MAX_PAYLOAD) {
+                    throw new IOException("Compressed frame too large");
+                }
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid compressed frame", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
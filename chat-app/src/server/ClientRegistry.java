@@ -0,0 +1,84 @@
+// Thread-safe registry of all connected clients.
+// ClientRegistry.java replaces the plain HashSet that Server used to share between threads.
+// Trådsäker lista över anslutna klienter med ett index från användarnamn till klient.
+
+package server;
+
+import common.ChatSession;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+// Anslutning och frånkoppling ändrar registret från accept-tråden och från varje klients egen tråd,
+// samtidigt som broadcast itererar över det. En HashSet gav ConcurrentModificationException och tappade medlemmar.
+// ConcurrentHashMap ger O(1) för join/leave med finkorniga lås per hink, och iteration utan lås:
+// en iterator kastar aldrig ConcurrentModificationException och ser varje klient högst en gång.
+public class ClientRegistry implements Iterable<ChatSession> {
+    // Alla anslutna klienter, även de som ännu inte angett användarnamn.
+    private final Set<ChatSession> sessions = ConcurrentHashMap.newKeySet();
+    // Användarnamn -> klienterna med det namnet, i den ordning de anslöt. Fylls i när handskakningen är klar.
+    // Samma namn kan användas av flera klienter; listorna är oföränderliga och byts ut med compute,
+    // så find() kan läsa dem utan lås.
+    private final ConcurrentMap<String, List<ChatSession>> byUsername = new ConcurrentHashMap<>();
+
+    // Lägger till en nyansluten klient.
+    public void add(ChatSession session) {
+        sessions.add(session);
+    }
+
+    // Indexerar klienten under sitt användarnamn. Returnerar false om namnet redan används av en annan klient;
+    // find() pekar då på den som kom först så länge den är ansluten, och därefter på nästa.
+    public boolean bindUsername(ChatSession session) {
+        String username = session.getUsername();
+        if (username == null) {
+            return false;
+        }
+        boolean[] first = new boolean[1];
+        byUsername.compute(username, (name, bound) -> {
+            first[0] = bound == null;
+            if (bound == null) {
+                return Collections.singletonList(session);
+            }
+            List<ChatSession> updated = new ArrayList<>(bound);
+            updated.add(session);
+            return Collections.unmodifiableList(updated);
+        });
+        return first[0];
+    }
+
+    // Tar bort klienten. Har någon annan klient samma namn pekar indexet därefter på den.
+    public void remove(ChatSession session) {
+        sessions.remove(session);
+        String username = session.getUsername();
+        if (username != null) {
+            byUsername.computeIfPresent(username, (name, bound) -> {
+                if (!bound.contains(session)) {
+                    return bound;
+                }
+                if (bound.size() == 1) {
+                    return null;
+                }
+                List<ChatSession> updated = new ArrayList<>(bound);
+                updated.remove(session);
+                return Collections.unmodifiableList(updated);
+            });
+        }
+    }
+
+    // Slår upp en klient på användarnamn i konstant tid. Returnerar null om ingen sådan finns.
+    public ChatSession find(String username) {
+        List<ChatSession> bound = byUsername.get(username);
+        return bound != null ? bound.get(0) : null;
+    }
+
+    // Antal anslutna klienter.
+    public int size() {
+        return sessions.size();
+    }
+
+    // Iterationen tar inga lås och är säker att köra samtidigt som klienter ansluter och kopplar ner.
+    @Override
+    public Iterator<ChatSession> iterator() {
+        return sessions.iterator();
+    }
+}
@@ -0,0 +1,104 @@
+// A single selector thread that owns a set of NIO connections.
+// EventLoop.java reads, parses and writes for every connection registered with it.
+// En tråd med en Selector som hanterar all I/O för sina anslutningar.
+
+package server;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+class EventLoop implements Runnable {
+    private final Selector selector;
+    // Uppgifter från andra trådar (nya anslutningar, skrivningar) som ska köras i loop-tråden.
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // Förhindrar att selector.wakeup() anropas i onödan när flera uppgifter läggs till samtidigt.
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    // En läsbuffert som återanvänds för alla anslutningar i loopen.
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(16 * 1024);
+    // En skrivbuffert som återanvänds på samma sätt. Köade rader kopieras hit och skrivs med ett anrop per anslutning.
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(64 * 1024);
+    private final ServerConfig config;  // Storlek och policy för anslutningarnas utgående köer.
+
+    EventLoop(ServerConfig config) throws IOException {
+        this.config = config;
+        selector = Selector.open();
+    }
+
+    // Lägger till en nyaccepterad kanal. Själva registreringen görs i loop-tråden.
+    void register(SocketChannel channel) {
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                NioConnection connection = new NioConnection(channel, key, this, config.newOutboundQueue(), config.newRateLimiter());
+                key.attach(connection);
+                connection.onConnected();
+            } catch (IOException | RuntimeException e) {
+                ServerLog.error("Could not register connection", e);
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        });
+    }
+
+    // Skrivbufferten får bara användas i loop-tråden.
+    ByteBuffer writeBuffer() {
+        return writeBuffer;
+    }
+
+    // Köar en uppgift till loop-tråden och väcker selectorn om den väntar.
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                selector.select();
+                wakeupPending.set(false);
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            connection.onReadable(readBuffer);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    } catch (IOException | CancelledKeyException e) {
+                        connection.close();
+                    } catch (RuntimeException e) {
+                        // Ett fel i en anslutning (t.ex. i Server) får inte stoppa loopen för alla andra anslutningar.
+                        ServerLog.error("Error in connection {}", connection.getUsername(), e);
+                        connection.close();
+                    }
+                }
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        ServerLog.error("Event loop task failed", e);
+                    }
+                }
+            } catch (IOException e) {
+                ServerLog.error("Event loop error", e);
+            }
+        }
+    }
+}
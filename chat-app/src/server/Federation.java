@@ -0,0 +1,441 @@
+// Links several Server processes together so rooms and the member list span all of them.
+// Federation.java relays broadcasts and membership changes between nodes over TCP and drops duplicates by message ID.
+// Kopplar ihop flera serverprocesser (noder) så att de beter sig som en enda chatt.
+
+package server;
+
+import common.OutboundQueue;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Varje nod lyssnar på --peer-port och ansluter till noderna i --peers. Exempel med tre noder på samma maskin:
+//   java server.Server --node-id=a --port=12345 --stats-port=12346 --peer-port=13345 --peers=localhost:13355,localhost:13365
+//   java server.Server --node-id=b --port=12355 --stats-port=12356 --peer-port=13355 --peers=localhost:13345,localhost:13365
+//   java server.Server --node-id=c --port=12365 --stats-port=12366 --peer-port=13365 --peers=localhost:13345,localhost:13355
+// Varje nod behöver egna portar och en egen historikkatalog. Utan --history-dir används history-<port>,
+// t.ex. history-12355, och utan --stats-port är /stats avstängd när --peer-port är satt.
+//
+// Mellan noderna skickas en rad per händelse, med fält åtskilda av tabb:
+//   HELLO  nod                              första raden i varje riktning, innan länken används
+//   SYNC   id  nod  alice,bob,              alla användare som är anslutna till noden
+//   JOIN   id  nod  användare  antal         användaren har nu antal sessioner på noden
+//   LEAVE  id  nod  användare  antal
+//   MSG    id  nod  rum  avsändare  text
+// id är unikt för varje händelse ("nod-start:nummer"). Varje händelse skickas vidare till alla andra länkar
+// första gången den tas emot och kastas sedan, så den når alla noder även om nätet inte är fullt ihopkopplat.
+//
+// Medlemslistan byggs av de lokala användarna och de användare som andra noder rapporterat.
+// När länken till en nod bryts tas dess användare bort; när noden kommer tillbaka skickar den SYNC igen.
+// Alla noder bör därför ha en egen länk till alla andra (fullt nät), så att en nod som går ner upptäcks direkt.
+//
+// Länkarna har ingen autentisering: den som når peer-porten kan skicka händelser i vilken användares namn som helst.
+// Porten lyssnar därför bara på 127.0.0.1 om inte --peer-bind anger en annan adress, t.ex. på ett internt nät.
+//
+// Mellan två noder finns oftast två länkar, eftersom båda ansluter till varandra. Varje nod skickar ändå allt
+// till en viss nod på en enda av dem (primary), så meddelanden i ett rum kommer fram i den ordning de skickades.
+// Den andra länken används bara om den första bryts.
+//
+// Samma nods händelser kan ändå komma i olika ordning: när en länk byts ut, och när en händelse går via en
+// tredje nod. JOIN och LEAVE anger därför hur många sessioner användaren har efteråt, inte en ändring, och
+// numret i id:t ökar för varje händelse från noden. För varje nod och användare sparas numret på den senast
+// tillämpade händelsen; en äldre JOIN, LEAVE eller SYNC för samma användare kastas. Att tillämpa en händelse två gånger eller i fel ordning ger därför samma lista.
+public class Federation {
+    private static final int LINK_QUEUE_CAPACITY = 64 * 1024;   // Händelser som får vänta per länk.
+    private static final int SEEN_CAPACITY = 100_000;           // Så många id sparas för att känna igen dubbletter.
+    private static final long RECONNECT_MILLIS = 2000;
+    private static final int HELLO_TIMEOUT_MILLIS = 10_000;
+
+    private final String nodeId;
+    private final String idPrefix;  // Nod och starttid, så id inte upprepas efter en omstart med samma --node-id.
+    private final String peerBind;
+    private final int peerPort;
+    private final List<String> peers;
+    private final MembershipPublisher membership;
+    private final AtomicLong counter = new AtomicLong();
+    private final Set<PeerLink> links = ConcurrentHashMap.newKeySet();
+    // Id som redan tagits emot eller skickats. De äldsta glöms när det blivit för många.
+    private final Map<String, Boolean> seen = new LinkedHashMap<String, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > SEEN_CAPACITY;
+        }
+    };
+    // Användarna på den här noden och på varje annan nod, med antal sessioner per namn. Skyddas av this.
+    private final Map<String, Integer> localMembers = new HashMap<>();
+    private final Map<String, RemoteNode> remoteNodes = new HashMap<>();
+
+    // Vad en annan nod har rapporterat. Finns kvar när länken bryts, så att gamla händelser som kommer sent
+    // fortfarande känns igen; bara användarna tas bort.
+    private static final class RemoteNode {
+        final long start;   // Nodens starttid från id:t. En nyare start betyder att noden har startats om.
+        long syncNumber;    // Numret på den senast tillämpade SYNC.
+        final Map<String, Integer> members = new HashMap<>();
+        final Map<String, Long> updated = new HashMap<>();  // Användare -> numret på senast tillämpade JOIN/LEAVE.
+
+        RemoteNode(long start) {
+            this.start = start;
+        }
+    }
+
+    public Federation(String nodeId, String peerBind, int peerPort, List<String> peers, MembershipPublisher membership) {
+        this.nodeId = nodeId;
+        this.idPrefix = nodeId + "-" + Long.toHexString(System.currentTimeMillis());
+        this.peerBind = peerBind;
+        this.peerPort = peerPort;
+        this.peers = peers;
+        this.membership = membership;
+    }
+
+    // Börjar lyssna efter andra noder och ansluter till dem i --peers. Förlorade länkar återansluts.
+    public void start() throws IOException {
+        InetAddress bindAddress = InetAddress.getByName(peerBind);
+        ServerSocket serverSocket = new ServerSocket(peerPort, 50, bindAddress);
+        if (!bindAddress.isLoopbackAddress()) {
+            ServerLog.warn("Federation port is reachable from {}; peer links are not authenticated", peerBind);
+        }
+        daemon("federation-accept", () -> {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    daemon("federation-link", () -> new PeerLink(socket).run());
+                } catch (IOException e) {
+                    ServerLog.error("Federation accept failed", e);
+                }
+            }
+        });
+        for (String peer : peers) {
+            String host = peer.substring(0, peer.lastIndexOf(':'));
+            int port = Integer.parseInt(peer.substring(peer.lastIndexOf(':') + 1));
+            daemon("federation-connect-" + peer, () -> {
+                while (true) {
+                    try {
+                        new PeerLink(new Socket(host, port)).run();
+                    } catch (IOException e) {
+                        // Noden är inte uppe än, eller har gått ner. Försök igen om en stund.
+                    }
+                    try {
+                        Thread.sleep(RECONNECT_MILLIS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            });
+        }
+        ServerLog.info("Federation node {} listening for peers on {}", nodeId, peerBind + ":" + peerPort);
+    }
+
+    // Ett meddelande från en lokal klient. Skickas till alla andra noder.
+    public void localMessage(String room, String sender, String text) {
+        publish("MSG", room, sender, text);
+    }
+
+    // Under låset, så att händelsernas nummer kommer i samma ordning som ändringarna av localMembers.
+    public synchronized void localJoined(String username) {
+        int count = localMembers.merge(username, 1, Integer::sum);
+        publish("JOIN", username, Integer.toString(count));
+    }
+
+    public synchronized void localLeft(String username) {
+        Integer count = localMembers.computeIfPresent(username, (name, sessions) -> sessions > 1 ? sessions - 1 : null);
+        publish("LEAVE", username, Integer.toString(count != null ? count : 0));
+    }
+
+    // Skapar en ny händelse från den här noden och skickar den på alla länkar.
+    private void publish(String type, String... fields) {
+        String id = idPrefix + ":" + counter.incrementAndGet();
+        markSeen(id);
+        StringBuilder line = new StringBuilder(type).append('\t').append(id).append('\t').append(nodeId);
+        for (String field : fields) {
+            line.append('\t').append(escape(field));
+        }
+        String encoded = line.toString();
+        for (PeerLink link : links) {
+            if (link.primary) {
+                link.send(encoded);
+            }
+        }
+    }
+
+    // Hanterar en rad från en annan nod och skickar den vidare till övriga länkar om den är ny.
+    private void receive(PeerLink from, String line) {
+        String[] fields = line.split("\t", -1);
+        if (fields.length < 4 || !markSeen(fields[1])) {
+            return;
+        }
+        for (PeerLink link : links) {
+            if (link.primary && link != from) {
+                link.send(line);
+            }
+        }
+        String origin = fields[2];
+        if (origin.equals(nodeId)) {
+            return;
+        }
+        switch (fields[0]) {
+            case "MSG":
+                if (fields.length < 6) {
+                    break;
+                }
+                Server.deliverRemote(unescape(fields[3]), unescape(fields[4]), unescape(fields[5]));
+                break;
+            case "JOIN":
+            case "LEAVE":
+                if (fields.length < 5) {
+                    break;
+                }
+                remoteUpdate(origin, fields[1], unescape(fields[3]), Integer.parseInt(fields[4]));
+                break;
+            case "SYNC":
+                remoteSync(origin, fields[1], unescape(fields[3]));
+                break;
+            default:
+                ServerLog.warn("Unknown federation event {}", fields[0]);
+        }
+    }
+
+    // JOIN eller LEAVE: användaren har nu count sessioner på noden, om inget nyare redan tillämpats.
+    private synchronized void remoteUpdate(String origin, String id, String username, int count) {
+        RemoteNode node = remoteNode(origin, id);
+        long number = eventNumber(id);
+        if (node == null || number <= node.syncNumber || number <= node.updated.getOrDefault(username, 0L)) {
+            return;
+        }
+        node.updated.put(username, number);
+        setSessions(node, username, count);
+    }
+
+    // Ersätter en nods användare med listan i SYNC. Användare med en nyare JOIN eller LEAVE behåller den.
+    // Bara skillnaden skickas ut som medlemsändringar.
+    private synchronized void remoteSync(String origin, String id, String list) {
+        RemoteNode node = remoteNode(origin, id);
+        long number = eventNumber(id);
+        if (node == null || number <= node.syncNumber) {
+            return;
+        }
+        node.syncNumber = number;
+        Map<String, Integer> listed = new HashMap<>();
+        for (String username : list.split(",")) {
+            if (!username.isEmpty()) {
+                listed.merge(username, 1, Integer::sum);
+            }
+        }
+        Set<String> names = new HashSet<>(node.members.keySet());
+        names.addAll(listed.keySet());
+        for (String username : names) {
+            if (node.updated.getOrDefault(username, 0L) < number) {
+                setSessions(node, username, listed.getOrDefault(username, 0));
+            }
+        }
+        // Händelser äldre än denna SYNC kastas ändå, så deras nummer behöver inte sparas.
+        node.updated.values().removeIf(updated -> updated < number);
+    }
+
+    // Nodens tillstånd för händelsens start. En händelse från en tidigare start av noden ger null;
+    // en senare start ersätter det gamla tillståndet och dess användare.
+    private RemoteNode remoteNode(String origin, String id) {
+        String prefix = id.substring(0, id.lastIndexOf(':'));
+        long start = Long.parseLong(prefix.substring(prefix.lastIndexOf('-') + 1), 16);
+        RemoteNode node = remoteNodes.get(origin);
+        if (node != null && start < node.start) {
+            return null;
+        }
+        if (node == null || start > node.start) {
+            if (node != null) {
+                clearMembers(node);
+            }
+            node = new RemoteNode(start);
+            remoteNodes.put(origin, node);
+        }
+        return node;
+    }
+
+    private static long eventNumber(String id) {
+        return Long.parseLong(id.substring(id.lastIndexOf(':') + 1));
+    }
+
+    // Sätter antalet sessioner och skickar skillnaden till medlemslistan.
+    private void setSessions(RemoteNode node, String username, int count) {
+        int difference = count - node.members.getOrDefault(username, 0);
+        for (; difference > 0; difference--) {
+            membership.joined(username);
+        }
+        for (; difference < 0; difference++) {
+            membership.left(username);
+        }
+        if (count > 0) {
+            node.members.put(username, count);
+        } else {
+            node.members.remove(username);
+        }
+    }
+
+    private void clearMembers(RemoteNode node) {
+        for (Map.Entry<String, Integer> entry : node.members.entrySet()) {
+            for (int i = 0; i < entry.getValue(); i++) {
+                membership.left(entry.getKey());
+            }
+        }
+        node.members.clear();
+    }
+
+    // En länk har kommit upp. Den andra noden får veta vilka som är anslutna hit.
+    // Under låset, så att ingen JOIN eller LEAVE hamnar mellan listan och registreringen av länken.
+    // Länken blir primary om det inte redan finns en länk till samma nod.
+    private synchronized void linkUp(PeerLink link) {
+        String id = idPrefix + ":" + counter.incrementAndGet();
+        markSeen(id);
+        StringBuilder list = new StringBuilder();
+        for (Map.Entry<String, Integer> entry : localMembers.entrySet()) {
+            for (int i = 0; i < entry.getValue(); i++) {
+                list.append(entry.getKey()).append(',');
+            }
+        }
+        link.send("SYNC\t" + id + "\t" + nodeId + "\t" + escape(list.toString()));
+        link.primary = true;
+        for (PeerLink other : links) {
+            if (link.remoteNode.equals(other.remoteNode)) {
+                link.primary = false;
+                break;
+            }
+        }
+        links.add(link);
+    }
+
+    // En länk har brutits. Finns en annan länk till samma nod tar den över; annars tas nodens användare
+    // bort ur medlemslistan.
+    private synchronized void linkDown(PeerLink link) {
+        if (!links.remove(link)) {
+            return;     // Länken kom aldrig upp, t.ex. för att HELLO saknades.
+        }
+        String node = link.remoteNode;
+        for (PeerLink other : links) {
+            if (node.equals(other.remoteNode)) {
+                other.primary |= link.primary;
+                return;
+            }
+        }
+        ServerLog.info("Federation link to {} lost", node);
+        RemoteNode remote = remoteNodes.get(node);
+        if (remote != null) {
+            clearMembers(remote);
+        }
+    }
+
+    // true första gången ett id ses.
+    private boolean markSeen(String id) {
+        synchronized (seen) {
+            return seen.put(id, Boolean.TRUE) == null;
+        }
+    }
+
+    private static void daemon(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Tabbar och radbrytningar i fälten (t.ex. i v2-meddelanden) får inte dela upp raden.
+    static String escape(String field) {
+        if (field.indexOf('\\') < 0 && field.indexOf('\t') < 0 && field.indexOf('\n') < 0 && field.indexOf('\r') < 0) {
+            return field;
+        }
+        return field.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    static String unescape(String field) {
+        if (field.indexOf('\\') < 0) {
+            return field;
+        }
+        StringBuilder text = new StringBuilder(field.length());
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c == '\\' && i + 1 < field.length()) {
+                char next = field.charAt(++i);
+                text.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                text.append(c);
+            }
+        }
+        return text.toString();
+    }
+
+    // En TCP-länk till en annan nod, åt vilket håll den än kopplades upp.
+    // Läsningen sker i den tråd som anropar run(); en egen skrivartråd tömmer länkens kö.
+    private final class PeerLink {
+        private final Socket socket;
+        // Begränsad kö, så att en långsam nod inte kan äta upp minnet. De äldsta händelserna kastas först.
+        private final OutboundQueue<String> outbound = new OutboundQueue<>(LINK_QUEUE_CAPACITY, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        private volatile String remoteNode;   // Den andra nodens id, från HELLO.
+        private volatile boolean primary;     // Händelser till noden skickas bara på den här länken.
+
+        PeerLink(Socket socket) {
+            this.socket = socket;
+        }
+
+        void send(String line) {
+            outbound.offer(line);
+        }
+
+        void run() {
+            Thread writer = new Thread(this::writeLoop, "federation-writer");
+            writer.setDaemon(true);
+            try {
+                socket.setTcpNoDelay(true);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                // Båda sidor skickar HELLO först, så att länken vet vilken nod den går till innan den används.
+                socket.getOutputStream().write(("HELLO\t" + nodeId + "\n").getBytes(StandardCharsets.UTF_8));
+                socket.setSoTimeout(HELLO_TIMEOUT_MILLIS);
+                String hello = in.readLine();
+                socket.setSoTimeout(0);
+                if (hello == null || !hello.startsWith("HELLO\t")) {
+                    throw new IOException("expected HELLO, got " + hello);
+                }
+                remoteNode = hello.substring("HELLO\t".length());
+                if (nodeId.equals(remoteNode)) {
+                    return;     // Länken går till den här noden själv, t.ex. på grund av en felaktig --peers.
+                }
+                writer.start();
+                linkUp(this);
+                String line;
+                while ((line = in.readLine()) != null) {
+                    receive(this, line);
+                }
+            } catch (IOException | RuntimeException e) {
+                ServerLog.warn("Federation link to {} failed: {}", remoteNode, e.toString());
+            } finally {
+                linkDown(this);
+                writer.interrupt();
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        private void writeLoop() {
+            try {
+                Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+                while (true) {
+                    String line = outbound.take();
+                    do {
+                        out.write(line);
+                        out.write('\n');
+                    } while ((line = outbound.poll()) != null);
+                    out.flush();
+                }
+            } catch (InterruptedException e) {
+                // Länken är stängd.
+            } catch (IOException e) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
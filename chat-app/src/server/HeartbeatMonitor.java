@@ -0,0 +1,79 @@
+// Detects dead connections with ping/pong heartbeats.
+// HeartbeatMonitor.java keeps one timeout per session on a shared TimerWheel and closes sessions that stop answering.
+// Upptäcker anslutningar där klienten har försvunnit utan att stänga, t.ex. efter ett nätverksavbrott.
+
+package server;
+
+import common.ChatSession;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Varje session har en enda timeout i hjulet åt gången. När den går ut jämförs tiden sedan klienten senast
+// skickade något (getLastActivity) med gränserna:
+//   kortare än idle-timeout            ny kontroll när idle-timeout skulle ha gått
+//   längre än idle-timeout             klienter med "/caps heartbeat" får "PING <n>"; ny kontroll efter read-timeout
+//   längre än idle-timeout + read-timeout   anslutningen stängs
+// Klienten svarar "/pong <n>", men all trafik från klienten räknas. Att ta emot ett meddelande kostar därför
+// bara en skrivning av en tidsstämpel; timeouten flyttas inte för varje meddelande.
+//
+// Klienter utan heartbeat (äldre klienter) kan inte pingas och skulle stängas om de bara är tysta.
+// De stängs därför inte här, utan förlitar sig på TCP keepalive. En anslutning som aldrig angett något
+// användarnamn stängs dock efter idle-timeout + read-timeout.
+public class HeartbeatMonitor {
+    public static final String CAPABILITY = "heartbeat";
+
+    private final long idleNanos;
+    private final long readNanos;
+    private final TimerWheel wheel = new TimerWheel(100, "heartbeat-wheel");
+    private final ConcurrentMap<ChatSession, TimerWheel.Timeout> timeouts = new ConcurrentHashMap<>();
+    private final AtomicLong pings = new AtomicLong();
+
+    public HeartbeatMonitor(long idleMillis, long readMillis) {
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+        this.readNanos = TimeUnit.MILLISECONDS.toNanos(readMillis);
+    }
+
+    public void track(ChatSession session) {
+        timeouts.put(session, wheel.schedule(() -> check(session), TimeUnit.NANOSECONDS.toMillis(idleNanos)));
+    }
+
+    public void untrack(ChatSession session) {
+        TimerWheel.Timeout timeout = timeouts.remove(session);
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+    // Körs i hjulets svepartråd.
+    private void check(ChatSession session) {
+        long idle = System.nanoTime() - session.getLastActivity();
+        if (idle < idleNanos) {
+            reschedule(session, idleNanos - idle);
+            return;
+        }
+        boolean heartbeat = session.getCapabilities().contains(CAPABILITY);
+        if (session.getUsername() != null && !heartbeat) {
+            reschedule(session, idleNanos);
+            return;
+        }
+        if (idle >= idleNanos + readNanos) {
+            ServerLog.info("Closing dead connection {} (nothing received for {} ms)", session.getUsername(),
+                    TimeUnit.NANOSECONDS.toMillis(idle));
+            timeouts.remove(session);
+            Server.metrics().idleDisconnected();
+            session.disconnect();
+            return;
+        }
+        if (heartbeat) {
+            session.sendControl("PING " + pings.incrementAndGet());
+        }
+        reschedule(session, idleNanos + readNanos - idle);
+    }
+
+    // Lägger en ny kontroll, om sessionen inte har tagits bort under tiden.
+    private void reschedule(ChatSession session, long delayNanos) {
+        timeouts.computeIfPresent(session,
+                (key, previous) -> wheel.schedule(() -> check(session), TimeUnit.NANOSECONDS.toMillis(delayNanos) + 1));
+    }
+}
@@ -0,0 +1,133 @@
+// Publishes membership changes to the connected clients.
+// MembershipPublisher.java coalesces joins and leaves and sends them as small JOIN:/LEAVE: deltas.
+// Samlar ihop in- och utloggningar och skickar bara ändringarna till klienterna.
+
+package server;
+
+import common.ChatSession;
+import common.Frame;
+import common.WireProtocol;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+// Tidigare byggdes hela medlemslistan om och skickades till alla vid varje join/leave, O(N²) bytes per händelse.
+//
+// Protokoll för klienter som anmält "/caps members-delta":
+//   SNAPSHOT:<version>:alice,bob,     hela listan, skickas bara vid anslutning eller på begäran ("/members")
+//   JOIN:<version>:carol              carol har anslutit
+//   LEAVE:<version>:alice             alice har lämnat
+// Varje ändring får ett nytt versionsnummer. Klienten hoppar över ändringar med version <= sin snapshot
+// och begär en ny snapshot om den ser ett hopp i versionerna.
+// Äldre klienter får fortfarande hela listan som "MEMBERS:alice,bob,", men högst en gång per samlingsfönster.
+public class MembershipPublisher {
+    public static final String DELTA_CAPABILITY = "members-delta";
+
+    private final ClientRegistry sessions;
+    private final long coalesceMillis;  // Hur länge ändringar samlas ihop innan de skickas.
+    private final ScheduledExecutorService scheduler;   // null om flush() bara anropas för hand.
+
+    // Publicerat tillstånd: användarnamn -> antal sessioner med det namnet. Skyddas av this.
+    private final Map<String, Integer> members = new TreeMap<>();
+    // Ändringar som ännu inte skickats: användarnamn -> netto antal joins minus leaves.
+    private final Map<String, Integer> pending = new LinkedHashMap<>();
+    private long version;
+    private boolean flushScheduled;
+
+    public MembershipPublisher(ClientRegistry sessions, long coalesceMillis) {
+        this.sessions = sessions;
+        this.coalesceMillis = coalesceMillis;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "membership-publisher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Utan egen tråd: ändringarna skickas först när anroparen kör flush(), t.ex. i MembershipBenchmark
+    // där hela utskicket ska ske i den tråd som mäts.
+    MembershipPublisher(ClientRegistry sessions) {
+        this.sessions = sessions;
+        this.coalesceMillis = 0;
+        this.scheduler = null;
+    }
+
+    public synchronized void joined(String username) {
+        change(username, 1);
+    }
+
+    public synchronized void left(String username) {
+        change(username, -1);
+    }
+
+    // En join följd av en leave inom samma fönster tar ut varandra och skickas aldrig.
+    private void change(String username, int delta) {
+        pending.merge(username, delta, Integer::sum);
+        if (!flushScheduled && scheduler != null) {
+            flushScheduled = true;
+            scheduler.schedule(this::flush, coalesceMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Skickar alla samlade ändringar. Sändningen sker under låset så att snapshot och deltan alltid
+    // hamnar i versionsordning i varje klients kö. send() blockerar aldrig, så låset hålls kort.
+    public synchronized void flush() {
+        flushScheduled = false;
+        List<String> deltas = new ArrayList<>();
+        for (Map.Entry<String, Integer> entry : pending.entrySet()) {
+            String username = entry.getKey();
+            for (int net = entry.getValue(); net > 0; net--) {
+                deltas.add("JOIN:" + (++version) + ":" + username);
+                members.merge(username, 1, Integer::sum);
+            }
+            for (int net = entry.getValue(); net < 0; net++) {
+                deltas.add("LEAVE:" + (++version) + ":" + username);
+                members.computeIfPresent(username, (name, count) -> count > 1 ? count - 1 : null);
+            }
+        }
+        pending.clear();
+        if (deltas.isEmpty()) {
+            return;
+        }
+        // Båda formaten kodas en gång och delas av alla mottagare.
+        Frame delta = Frame.ofLines(WireProtocol.MEMBERSHIP, deltas);
+        Frame fullList = null;
+        for (ChatSession session : sessions) {
+            if (session.getUsername() == null) {
+                continue;   // Handskakningen är inte klar än.
+            }
+            if (session.getCapabilities().contains(DELTA_CAPABILITY)) {
+                session.send(delta);
+            } else {
+                if (fullList == null) {
+                    fullList = Frame.of(WireProtocol.MEMBERSHIP, membersLine());
+                }
+                session.send(fullList);
+            }
+        }
+    }
+
+    // Skickar hela listan till en klient, t.ex. direkt efter anslutning.
+    public synchronized void sendSnapshot(ChatSession session) {
+        if (session.getCapabilities().contains(DELTA_CAPABILITY)) {
+            session.send(Frame.of(WireProtocol.MEMBERSHIP, "SNAPSHOT:" + version + ":" + joinedMembers()));
+        } else {
+            session.send(Frame.of(WireProtocol.MEMBERSHIP, membersLine()));
+        }
+    }
+
+    // Medlemslistan i det äldre formatet, "MEMBERS:alice,bob,".
+    public synchronized String membersLine() {
+        return "MEMBERS:" + joinedMembers();
+    }
+
+    private String joinedMembers() {
+        StringBuilder list = new StringBuilder();
+        for (Map.Entry<String, Integer> entry : members.entrySet()) {
+            for (int i = 0; i < entry.getValue(); i++) {
+                list.append(entry.getKey()).append(",");
+            }
+        }
+        return list.toString();
+    }
+}
@@ -0,0 +1,370 @@
+// Durable, append-only chat history.
+// MessageLog.java writes every broadcast to memory-mapped segment files and reads back recent messages.
+// Sparar chatthistoriken i minnesmappade loggfiler så att nya klienter kan se de senaste meddelandena.
+
+package server;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Loggen består av segmentfiler med fast storlek, t.ex. history/00000000000000000001.log, där namnet är första postens nummer.
+// Varje post är [int längd][long nummer][long tid][int + bytes rum][int + bytes avsändare][int + bytes text].
+// En längd 0 markerar slutet, eftersom en ny mappad fil är nollfylld.
+//
+// append() lägger bara posten i en kö och blockerar aldrig broadcast. En enda skrivartråd tömmer kön,
+// skriver posterna sekventiellt och gör force() en gång per omgång (group commit).
+// Var INDEX_INTERVAL:e post sparas i ett glest index (nummer -> position) som används vid läsning.
+public class MessageLog implements Closeable {
+    private static final int INDEX_INTERVAL = 64;   // Var 64:e post indexeras.
+    private static final int MAX_BATCH = 1024;      // Max antal poster per force().
+
+    // En post i historiken.
+    public static final class Entry {
+        public final long seq;
+        public final long timestamp;
+        public final String room;
+        public final String sender;
+        public final String text;
+
+        Entry(long seq, long timestamp, String room, String sender, String text) {
+            this.seq = seq;
+            this.timestamp = timestamp;
+            this.room = room;
+            this.sender = sender;
+            this.text = text;
+        }
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int maxSegments;  // Äldre segment tas bort när det finns fler än så här.
+    private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(64 * 1024);
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+    private final AtomicLong dropped = new AtomicLong();    // Poster som inte fick plats i kön.
+    // Låset på katalogens "lock"-fil. Två processer som mappar samma segment skulle skriva över varandras poster.
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private final Thread writer;
+    private volatile boolean closed;
+    private long nextSeq = 1;   // Används bara av skrivartråden efter konstruktorn.
+
+    public MessageLog(Path directory, int segmentSize, int maxSegments) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = Math.max(1, maxSegments);
+        Files.createDirectories(directory);
+        lockChannel = FileChannel.open(directory.resolve("lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock acquired;
+        try {
+            acquired = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            acquired = null;    // Låst av samma process.
+        }
+        if (acquired == null) {
+            lockChannel.close();
+            throw new IOException("History directory " + directory.toAbsolutePath()
+                    + " is already in use by another server; use a separate --history-dir for each node");
+        }
+        lock = acquired;
+        recover();
+        writer = new Thread(this::writeLoop, "history-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Köar ett meddelande för skrivning. Blockerar aldrig; returnerar false om kön är full.
+    public boolean append(String room, String sender, String text) {
+        if (closed || !queue.offer(new Entry(0, System.currentTimeMillis(), room, sender, text))) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    // De senaste n meddelandena i ett rum, äldst först.
+    // Segmenten läses bakifrån, ett indexavsnitt i taget, tills det finns n träffar.
+    // Segment där rummet aldrig förekommer hoppas över, så ett rum utan historik kostar inte en genomläsning av hela loggen.
+    // Läser från en kopia av segmentlistan, eftersom skrivartråden kan lägga till och ta bort segment under tiden.
+    public List<Entry> readLast(String room, int n) {
+        ArrayDeque<Entry> result = new ArrayDeque<>();
+        Segment[] snapshot = segments.toArray(new Segment[0]);
+        for (int s = snapshot.length - 1; s >= 0 && result.size() < n; s--) {
+            Segment segment = snapshot[s];
+            if (!segment.rooms.contains(room)) {
+                continue;
+            }
+            int end = segment.committed;
+            int[] points = segment.indexPositions();
+            for (int k = points.length - 1; k >= 0 && result.size() < n; k--) {
+                int to = k + 1 < points.length ? points[k + 1] : end;
+                List<Entry> chunk = segment.scan(points[k], Math.min(to, end), room, 0, Integer.MAX_VALUE);
+                for (int i = chunk.size() - 1; i >= 0 && result.size() < n; i--) {
+                    result.addFirst(chunk.get(i));
+                }
+            }
+        }
+        return new ArrayList<>(result);
+    }
+
+    // Meddelanden med nummer större än afterSeq, i alla rum, högst limit stycken.
+    // Används när servern startar för att läsa in rummens senaste meddelanden i ett enda svep (se RoomManager).
+    public List<Entry> readSince(long afterSeq, int limit) {
+        List<Entry> result = new ArrayList<>();
+        for (Segment segment : segments) {
+            if (result.size() >= limit) {
+                break;
+            }
+            if (segment.lastSeq <= afterSeq) {
+                continue;
+            }
+            int start = segment.floorPosition(afterSeq + 1);
+            result.addAll(segment.scan(start, segment.committed, null, afterSeq, limit - result.size()));
+        }
+        return result;
+    }
+
+    // Numret på den senast skrivna posten, eller 0 om loggen är tom.
+    public long getLastSeq() {
+        Segment[] snapshot = segments.toArray(new Segment[0]);
+        return snapshot.length == 0 ? 0 : snapshot[snapshot.length - 1].lastSeq;
+    }
+
+    // Antal meddelanden som inte kunde sparas för att skrivkön var full.
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    // Skriver allt som ligger i kön och väntar på att det når disken.
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            lock.release();
+            lockChannel.close();
+        } catch (IOException e) {
+            ServerLog.warn("Could not release history lock: {}", e.getMessage());
+        }
+    }
+
+    private void writeLoop() {
+        List<Entry> batch = new ArrayList<>(MAX_BATCH);
+        while (!closed || !queue.isEmpty()) {
+            try {
+                Entry first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH - 1);
+                for (Entry entry : batch) {
+                    write(entry);
+                }
+                // Group commit: en force() för hela omgången i stället för en per meddelande.
+                // Ett segment som lämnas mitt i omgången har redan fått sin force() i roll().
+                active().buffer.force();
+            } catch (InterruptedException e) {
+                break;
+            } catch (IOException | RuntimeException e) {
+                ServerLog.error("Could not write history", e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void write(Entry entry) throws IOException {
+        byte[] room = entry.room.getBytes(StandardCharsets.UTF_8);
+        byte[] sender = entry.sender.getBytes(StandardCharsets.UTF_8);
+        byte[] text = entry.text.getBytes(StandardCharsets.UTF_8);
+        int bodyLength = 8 + 8 + 4 + room.length + 4 + sender.length + 4 + text.length;
+        if (4 + bodyLength > segmentSize) {
+            dropped.incrementAndGet();  // Får inte plats ens i ett tomt segment.
+            return;
+        }
+        Segment segment = active();
+        if (segment.remaining() < 4 + bodyLength) {
+            segment = roll();
+        }
+        segment.append(nextSeq++, entry.timestamp, entry.room, room, sender, text, bodyLength);
+    }
+
+    private Segment active() throws IOException {
+        return segments.isEmpty() ? roll() : segments.get(segments.size() - 1);
+    }
+
+    // Startar ett nytt segment och tar bort de äldsta om det blivit för många.
+    // Det segment som lämnas skrivs till disken först, annars skulle dess sista poster i omgången aldrig få force().
+    private Segment roll() throws IOException {
+        if (!segments.isEmpty()) {
+            segments.get(segments.size() - 1).buffer.force();
+        }
+        Segment segment = new Segment(directory.resolve(String.format("%020d.log", nextSeq)), nextSeq, segmentSize);
+        segments.add(segment);
+        while (segments.size() > maxSegments) {
+            Segment oldest = segments.remove(0);
+            try {
+                Files.deleteIfExists(oldest.file);
+            } catch (IOException e) {
+                // På vissa plattformar kan en fil som fortfarande är mappad inte tas bort; den tas bort nästa gång.
+                ServerLog.warn("Could not delete history segment {}: {}", oldest.file, e.getMessage());
+            }
+        }
+        return segment;
+    }
+
+    // Läser in befintliga segment vid start och fortsätter efter den sista kompletta posten.
+    private void recover() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.log")) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        Collections.sort(files);
+        for (Path file : files) {
+            long baseSeq = Long.parseLong(file.getFileName().toString().replace(".log", ""));
+            Segment segment = new Segment(file, baseSeq, (int) Math.max(segmentSize, Files.size(file)));
+            segment.recover();
+            segments.add(segment);
+            nextSeq = Math.max(nextSeq, segment.lastSeq + 1);
+        }
+    }
+
+    // En segmentfil, mappad i sin helhet. Bara skrivartråden skriver; läsare använder egna kopior av bufferten.
+    private static final class Segment {
+        final Path file;
+        final long baseSeq;
+        final MappedByteBuffer buffer;  // Används bara av skrivartråden.
+        final ByteBuffer readView;      // Ändras aldrig; läsare gör duplicate() på den.
+        volatile int committed;         // Antal bytes med kompletta poster som läsare får se.
+        volatile long lastSeq;
+        // Rummen som har minst en post i segmentet. Fylls i innan committed flyttas, så en läsare som ser posten ser också rummet.
+        final Set<String> rooms = ConcurrentHashMap.newKeySet();
+        private long[] indexSeq = new long[16];
+        private int[] indexPos = new int[16];
+        private int indexSize;
+        private int records;
+
+        Segment(Path file, long baseSeq, int size) throws IOException {
+            this.file = file;
+            this.baseSeq = baseSeq;
+            this.lastSeq = baseSeq - 1;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+            readView = buffer.duplicate();
+        }
+
+        int remaining() {
+            return buffer.capacity() - committed;
+        }
+
+        void append(long seq, long timestamp, String roomName, byte[] room, byte[] sender, byte[] text, int bodyLength) {
+            int position = committed;
+            if (records++ % INDEX_INTERVAL == 0) {
+                addIndex(seq, position);
+            }
+            rooms.add(roomName);
+            // Innehållet skrivs före längden, så en halvskriven post vid krasch ser ut som slutet på loggen.
+            buffer.position(position + 4);
+            buffer.putLong(seq).putLong(timestamp);
+            buffer.putInt(room.length).put(room);
+            buffer.putInt(sender.length).put(sender);
+            buffer.putInt(text.length).put(text);
+            buffer.putInt(position, bodyLength);
+            committed = position + 4 + bodyLength;
+            lastSeq = seq;
+        }
+
+        // Går igenom filen från början och stannar vid första ofullständiga post.
+        void recover() {
+            ByteBuffer view = readView.duplicate();
+            int position = 0;
+            while (position + 4 <= view.capacity()) {
+                int length = view.getInt(position);
+                if (length < 20 || position + 4 + length > view.capacity()) {
+                    break;
+                }
+                long seq = view.getLong(position + 4);
+                if (seq <= lastSeq) {
+                    break;
+                }
+                if (records++ % INDEX_INTERVAL == 0) {
+                    addIndex(seq, position);
+                }
+                view.position(position + 4 + 16);
+                rooms.add(readString(view));
+                lastSeq = seq;
+                position += 4 + length;
+            }
+            committed = position;
+        }
+
+        // Poster mellan två positioner, filtrerade på rum (null = alla) och nummer, högst limit stycken.
+        List<Entry> scan(int from, int to, String room, long afterSeq, int limit) {
+            List<Entry> entries = new ArrayList<>();
+            ByteBuffer view = readView.duplicate();
+            int position = from;
+            while (position < to && entries.size() < limit) {
+                int length = view.getInt(position);
+                view.position(position + 4);
+                long seq = view.getLong();
+                long timestamp = view.getLong();
+                String entryRoom = readString(view);
+                if ((room == null || room.equals(entryRoom)) && seq > afterSeq) {
+                    entries.add(new Entry(seq, timestamp, entryRoom, readString(view), readString(view)));
+                }
+                position += 4 + length;
+            }
+            return entries;
+        }
+
+        private static String readString(ByteBuffer view) {
+            byte[] bytes = new byte[view.getInt()];
+            view.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private synchronized void addIndex(long seq, int position) {
+            if (indexSize == indexSeq.length) {
+                indexSeq = Arrays.copyOf(indexSeq, indexSize * 2);
+                indexPos = Arrays.copyOf(indexPos, indexSize * 2);
+            }
+            indexSeq[indexSize] = seq;
+            indexPos[indexSize] = position;
+            indexSize++;
+        }
+
+        synchronized int[] indexPositions() {
+            return Arrays.copyOf(indexPos, indexSize);
+        }
+
+        // Positionen för den sista indexerade posten med nummer <= seq, eller 0.
+        synchronized int floorPosition(long seq) {
+            int low = 0;
+            int high = indexSize - 1;
+            int position = 0;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (indexSeq[mid] <= seq) {
+                    position = indexPos[mid];
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return position;
+        }
+    }
+}
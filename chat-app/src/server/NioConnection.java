@@ -0,0 +1,335 @@
+// One client connection in NIO mode.
+// NioConnection.java parses line frames incrementally and queues outgoing lines for its event loop.
+// En klientanslutning i NIO-läge med samma protokoll (text eller v2) som ClientHandler.
+
+package server;
+
+import common.ChatSession;
+import common.Frame;
+import common.OutboundQueue;
+import common.RateLimiter;
+import common.WireProtocol;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+class NioConnection implements ChatSession {
+    private static final int MAX_LINE_LENGTH = 64 * 1024;   // Längre rader än så betraktas som ett protokollfel.
+
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final EventLoop loop;   // Loopen som äger anslutningen. All kanal-I/O sker i dess tråd.
+    // Rader som väntar på att skrivas. sendMessage kan anropas från vilken tråd som helst.
+    // Kön är begränsad på samma sätt som för ClientHandler, så en långsam klient inte kan äta upp minnet.
+    // Köade Frames delas med alla andra mottagare och kopieras först när de skrivs.
+    private final OutboundQueue<Frame> outbound;
+    // Den kodade raden (eller v2-ramen) som håller på att kopieras till skrivbufferten och hur långt den kommit.
+    // Ägs av loop-tråden och ligger utanför kön, så att DROP_OLDEST aldrig kan kasta en halvskriven rad.
+    private byte[] current;
+    private int currentOffset;
+    // Bytes som kanalen inte tog emot vid förra skrivningen. Skapas först när klienten inte hinner med.
+    private ByteBuffer pending;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    // Bytes för den rad (eller de v2-ramar) som håller på att tas emot. Bufferten återanvänds mellan raderna.
+    private byte[] line = new byte[256];
+    private int lineLength;
+    // Protokollet avgörs av klientens första byte (se WireProtocol.java). Används bara av loop-tråden.
+    private boolean protocolDetected;
+    private boolean prefaceRead;
+    private boolean v2;
+    private boolean deflate;    // v2-klienten klarar komprimerade ramar.
+    private volatile String username;
+    private volatile boolean closed;
+    private volatile long lastActivity = System.nanoTime();  // Senast något lästes från klienten (se HeartbeatMonitor).
+    private final Set<String> capabilities = ConcurrentHashMap.newKeySet();  // Protokolltillägg som klienten anmält.
+    private final RateLimiter rateLimiter;  // Begränsar inkommande meddelanden. null om begränsningen är avstängd.
+
+    NioConnection(SocketChannel channel, SelectionKey key, EventLoop loop, OutboundQueue<Frame> outbound, RateLimiter rateLimiter) {
+        this.channel = channel;
+        this.key = key;
+        this.loop = loop;
+        this.outbound = outbound;
+        this.rateLimiter = rateLimiter;
+    }
+
+    // Samma handskakning som ClientHandler: klienten läggs till och ombeds ange sitt användarnamn.
+    void onConnected() {
+        Server.addClient(this);
+        sendMessage("Enter your username:");
+    }
+
+    // Läser det som finns på kanalen och delar upp det i rader. Halva rader sparas till nästa läsning.
+    void onReadable(ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        int read = channel.read(buffer);
+        if (read < 0) {
+            close();
+            return;
+        }
+        Server.metrics().bytesRead(read);
+        lastActivity = System.nanoTime();
+        buffer.flip();
+        // En textklient börjar med sitt användarnamn, en v2-klient med byte 0.
+        if (!protocolDetected && buffer.hasRemaining()) {
+            protocolDetected = true;
+            v2 = buffer.get(buffer.position()) == 0;
+        }
+        if (v2) {
+            readFrames(buffer);
+            return;
+        }
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get();
+            if (b == '\n') {
+                String message = decodeLine();
+                lineLength = 0;
+                handleLine(message, false);
+                if (closed) {
+                    return;
+                }
+            } else {
+                if (lineLength == MAX_LINE_LENGTH) {
+                    ServerLog.warn("Line too long from {}, closing connection.", username);
+                    close();
+                    return;
+                }
+                if (lineLength == line.length) {
+                    line = Arrays.copyOf(line, Math.min(line.length * 2, MAX_LINE_LENGTH));
+                }
+                line[lineLength++] = b;
+            }
+        }
+    }
+
+    // Samlar bytes i line tills handskakningen eller en hel ram har kommit, och hanterar sedan varje ram.
+    // Det som blir över (början på nästa ram) flyttas till början av bufferten.
+    private void readFrames(ByteBuffer buffer) {
+        int needed = lineLength + buffer.remaining();
+        if (needed > line.length) {
+            line = Arrays.copyOf(line, Math.max(needed, line.length * 2));
+        }
+        int available = buffer.remaining();
+        buffer.get(line, lineLength, available);
+        lineLength += available;
+        int position = 0;
+        try {
+            while (!closed) {
+                if (!prefaceRead) {
+                    if (lineLength - position < WireProtocol.PREFACE.length + 1) {
+                        break;
+                    }
+                    deflate = (WireProtocol.checkPreface(line, position) & WireProtocol.FLAG_DEFLATE) != 0;
+                    prefaceRead = true;
+                    position += WireProtocol.PREFACE.length + 1;
+                    continue;
+                }
+                if (lineLength - position < WireProtocol.HEADER_LENGTH) {
+                    break;
+                }
+                int length = (line[position] & 0xff) << 24 | (line[position + 1] & 0xff) << 16
+                        | (line[position + 2] & 0xff) << 8 | (line[position + 3] & 0xff);
+                WireProtocol.checkLength(length);
+                if (lineLength - position < WireProtocol.HEADER_LENGTH + length) {
+                    break;
+                }
+                WireProtocol.Message message = WireProtocol.decode(line[position + 4], line[position + 5],
+                        line, position + WireProtocol.HEADER_LENGTH, length);
+                position += WireProtocol.HEADER_LENGTH + length;
+                // En CHAT-ram är alltid chatt, även om texten börjar med "/".
+                handleLine(message.text, message.type == WireProtocol.CHAT);
+            }
+        } catch (IOException e) {
+            ServerLog.warn("Protocol error from {}: {}", username, e.getMessage());
+            close();
+            return;
+        }
+        System.arraycopy(line, position, line, 0, lineLength - position);
+        lineLength -= position;
+        // En stor ram ska inte hålla kvar en stor buffert för resten av anslutningen.
+        if (lineLength == 0 && line.length > MAX_LINE_LENGTH) {
+            line = new byte[256];
+        }
+    }
+
+    // PrintWriter.println på Windows avslutar raden med "\r\n", så ett avslutande '\r' tas bort.
+    private String decodeLine() {
+        int length = lineLength;
+        if (length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+        return new String(line, 0, length, StandardCharsets.UTF_8);
+    }
+
+    // Motsvarar loopen i ClientHandler.run: första raden är användarnamnet, därefter chattmeddelanden.
+    // chat är true för en CHAT-ram från en v2-klient, som aldrig tolkas som kommando.
+    private void handleLine(String message, boolean chat) {
+        if (username == null) {
+            username = message;
+            Server.memberJoined(this);
+            ServerLog.info("{} has joined the chat.", username);
+            return;
+        }
+        Server.metrics().messageReceived();
+        if (!chat && message.equals("/disconnect")) {
+            close();
+            return;
+        }
+        if (Server.throttle(this, rateLimiter)) {
+            return;
+        }
+        if (!chat && Server.handleCommand(this, message)) {
+            return;
+        }
+        ServerLog.message("Received from {}: {}", username, message);
+        Server.broadcast(message, username, this);
+    }
+
+    // Kan anropas från vilken tråd som helst. Raden köas och loopen ombeds skriva ut den.
+    @Override
+    public void send(Frame frame) {
+        if (closed) {
+            return;
+        }
+        if (!outbound.offer(frame)) {
+            // Kön är full och policyn är DISCONNECT. Stängningen görs i loop-tråden.
+            closed = true;
+            Server.metrics().slowClientDisconnected();
+            ServerLog.warn("Disconnecting slow client {} ({} queued messages).", username, outbound.depth());
+            loop.execute(this::closeNow);
+            return;
+        }
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(this::flush);
+        }
+    }
+
+    // Körs i loop-tråden. Köade rader kopieras till loopens gemensamma skrivbuffert och skrivs med ett anrop.
+    // Det som kanalen inte tar emot sparas i pending och skrivs när kanalen blir skrivbar igen (OP_WRITE).
+    void flush() {
+        try {
+            int rounds = 0;
+            while (!closed) {
+                if (pending != null && pending.hasRemaining()) {
+                    Server.metrics().bytesWritten(channel.write(pending));
+                    if (pending.hasRemaining()) {
+                        // Socketens sändbuffert är full. Fortsätt när kanalen blir skrivbar igen.
+                        Server.metrics().writeStalled();
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                ByteBuffer buffer = loop.writeBuffer();
+                buffer.clear();
+                fill(buffer);
+                if (buffer.position() == 0) {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                    flushScheduled.set(false);
+                    // Något kan ha köats efter att kön tömdes men innan flaggan släpptes.
+                    if (outbound.isEmpty() || !flushScheduled.compareAndSet(false, true)) {
+                        return;
+                    }
+                    continue;
+                }
+                buffer.flip();
+                Server.metrics().bytesWritten(channel.write(buffer));
+                if (buffer.hasRemaining()) {
+                    Server.metrics().writeStalled();
+                    if (pending == null) {
+                        pending = ByteBuffer.allocate(buffer.capacity());
+                    }
+                    pending.clear();
+                    pending.put(buffer).flip();
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                // En klient som får mycket trafik ska inte svälta de andra anslutningarna i loopen.
+                if (++rounds == 16) {
+                    loop.execute(this::flush);
+                    return;
+                }
+            }
+        } catch (IOException | CancelledKeyException e) {
+            close();
+        }
+    }
+
+    // Kopierar köade rader till bufferten tills den är full eller kön är tom.
+    private void fill(ByteBuffer buffer) {
+        while (buffer.hasRemaining()) {
+            if (current == null) {
+                Frame frame = outbound.poll();
+                if (frame == null) {
+                    return;
+                }
+                // Kodningen delas med alla andra mottagare av samma Frame (se Frame.v2Bytes).
+                current = v2 ? frame.v2Bytes(deflate) : frame.bytes();
+                currentOffset = 0;
+            }
+            int length = Math.min(buffer.remaining(), current.length - currentOffset);
+            buffer.put(current, currentOffset, length);
+            currentOffset += length;
+            if (currentOffset == current.length) {
+                current = null;
+            }
+        }
+    }
+
+    // Stänger kanalen och tar bort klienten från serverns lista. Körs i loop-tråden.
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        closeNow();
+    }
+
+    private void closeNow() {
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            ServerLog.error("Could not close connection of {}", username, e);
+        }
+        outbound.clear();
+        current = null;
+        pending = null;
+        Server.removeClient(this);
+        ServerLog.info("{} has left the chat.", username);
+    }
+
+    @Override
+    public Set<String> getCapabilities() {
+        return capabilities;
+    }
+
+    @Override
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    // Stängningen görs i loop-tråden, som äger kanalen.
+    @Override
+    public void disconnect() {
+        loop.execute(this::close);
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return outbound.depth();
+    }
+
+    @Override
+    public long getDroppedMessages() {
+        return outbound.dropped();
+    }
+
+    @Override
+    public String getUsername() {
+        return username;
+    }
+}
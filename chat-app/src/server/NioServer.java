@@ -0,0 +1,45 @@
+// Non-blocking server mode built on ServerSocketChannel and Selector.
+// NioServer.java accepts connections and hands them out to a small pool of event loops.
+// Icke-blockerande serverläge: ett fåtal event-loop-trådar i stället för en tråd per klient.
+
+package server;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+
+public class NioServer {
+    private final ServerConfig config;  // Port och antal event-loopar.
+
+    public NioServer(ServerConfig config) {
+        this.config = config;
+    }
+
+    // Startar event-looparna och kör sedan accept-loopen i den anropande tråden.
+    public void start() throws IOException {
+        // En event-loop per kärna. Varje loop äger sina anslutningar och sin egen Selector.
+        EventLoop[] loops = new EventLoop[config.getEventLoops()];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(config);
+            new Thread(loops[i], "event-loop-" + i).start();
+        }
+
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(config.getPort()), 1024);
+        ServerLog.info("Server started (NIO, {} event loops). Waiting for clients...", loops.length);
+
+        int next = 0;
+        while (true) {
+            // Accept-tråden blockerar bara på accept; all läsning och skrivning sker i event-looparna.
+            SocketChannel channel = serverChannel.accept();
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            // Klienter utan heartbeat upptäcks bara av operativsystemets keepalive (se HeartbeatMonitor).
+            channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+            Server.metrics().connectionAccepted();
+            ServerLog.info("New client connected.");
+            // Anslutningarna fördelas round-robin mellan looparna.
+            loops[next].register(channel);
+            next = (next + 1) % loops.length;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+// A named chat room and its members.
+// Room.java keeps the member set that a room broadcast fans out to.
+// Ett namngivet chattrum med egna medlemmar.
+
+package server;
+
+import common.ChatSession;
+import common.Frame;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+public class Room {
+    private final String name;
+    // Medlemmarna enligt RoomManager. Ändras direkt vid join och leave och avgör rummets storlek och om det är tomt.
+    private final Set<ChatSession> members = ConcurrentHashMap.newKeySet();
+    // De som får rummets utskick. Ändras och läses bara på dispatcher-tråden, i samma ordning som utskicken,
+    // så en ny medlem får antingen ett meddelande i historiken eller direkt, aldrig båda och aldrig inget.
+    private final Set<ChatSession> recipients = new HashSet<>();
+    // Tråden som gör alla utskick i rummet. Meddelanden i samma rum skickas därför i ordning,
+    // medan olika rum kan ligga på olika trådar och kärnor.
+    private final Executor dispatcher;
+    // Rummets senaste meddelanden som de skickades till andra ("Alice: Hej"), äldst först.
+    // Skickas till den som går in i rummet. Används bara på dispatcher-tråden.
+    private final int tailCapacity;
+    private ArrayDeque<Frame> tail = new ArrayDeque<>();
+
+    Room(String name, Executor dispatcher) {
+        this(name, dispatcher, 0, null);
+    }
+
+    // initialTail körs som första uppgift på dispatcher-tråden och ger de meddelanden rummet börjar med,
+    // t.ex. från historiken. Den kan returnera null.
+    Room(String name, Executor dispatcher, int tailCapacity, Supplier<ArrayDeque<Frame>> initialTail) {
+        this.name = name;
+        this.dispatcher = dispatcher;
+        this.tailCapacity = tailCapacity;
+        if (tailCapacity > 0 && initialTail != null) {
+            dispatcher.execute(() -> {
+                ArrayDeque<Frame> frames = initialTail.get();
+                if (frames != null) {
+                    tail = frames;
+                }
+            });
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // Den nya medlemmen får först rummets senaste meddelanden och börjar sedan ta emot utskick.
+    // Båda delarna görs i samma uppgift på dispatcher-tråden, mellan två utskick.
+    void add(ChatSession session) {
+        members.add(session);
+        dispatcher.execute(() -> {
+            if (!members.contains(session)) {
+                return;     // Klienten har redan lämnat rummet.
+            }
+            for (Frame frame : tail) {
+                session.send(frame);
+            }
+            recipients.add(session);
+        });
+    }
+
+    void remove(ChatSession session) {
+        members.remove(session);
+        dispatcher.execute(() -> recipients.remove(session));
+    }
+
+    boolean isEmpty() {
+        return members.isEmpty();
+    }
+
+    public int size() {
+        return members.size();
+    }
+
+    // Lämnar över de senaste meddelandena när rummet tas bort, så att ett nytt rum med samma namn kan fortsätta
+    // med dem (se RoomManager). Körs på dispatcher-tråden efter alla utskick som redan köats.
+    void retire(Consumer<ArrayDeque<Frame>> keeper) {
+        if (tailCapacity > 0) {
+            dispatcher.execute(() -> keeper.accept(tail));
+        }
+    }
+
+    // Skickar ett meddelande till rummets medlemmar på rummets dispatcher-tråd.
+    // Frames är redan kodade av anroparen; här görs bara själva utskicket till medlemmarnas köer.
+    // Tiden för hela utskicket och antalet mottagare registreras i serverns mätvärden.
+    void broadcast(Frame toSender, Frame toOthers, ChatSession senderHandler) {
+        dispatcher.execute(() -> {
+            long start = System.nanoTime();
+            int count = 0;
+            for (ChatSession member : recipients) {
+                member.send(member == senderHandler ? toSender : toOthers);
+                count++;
+            }
+            if (tailCapacity > 0) {
+                tail.addLast(toOthers);
+                if (tail.size() > tailCapacity) {
+                    tail.removeFirst();
+                }
+            }
+            Server.metrics().broadcastDone(count, System.nanoTime() - start);
+        });
+    }
+}
@@ -0,0 +1,175 @@
+// Keeps track of all rooms and which room every client is in.
+// RoomManager.java partitions rooms across a fixed set of dispatcher threads.
+// Håller reda på alla rum och fördelar dem på ett fast antal dispatcher-trådar.
+
+package server;
+
+import common.ChatSession;
+import common.Frame;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+public class RoomManager {
+    public static final String DEFAULT_ROOM = "lobby";  // Rummet som alla hamnar i när de ansluter.
+    private static final int SAVED_TAILS = 1024;        // Antal borttagna rum vars senaste meddelanden sparas i minnet.
+    private static final int WARM_UP_RECORDS = 100_000; // Antal poster som läses från historiken när servern startar.
+
+    private final ConcurrentMap<String, Room> rooms = new ConcurrentHashMap<>();
+    private final ConcurrentMap<ChatSession, Room> roomOf = new ConcurrentHashMap<>();
+    // Ett rum hör alltid till samma dispatcher, vald med rummets namn. Varje dispatcher är en enda tråd.
+    private final ExecutorService[] dispatchers;
+    private final MessageLog history;   // null om historiken är avstängd.
+    private final int replay;           // Antal meddelanden som skickas till den som går in i ett rum.
+    // De senaste meddelandena för rum som inte finns just nu: tomma rum som tagits bort, och rum som hade
+    // meddelanden i historiken när servern startade. Ett nytt rum med samma namn börjar med dem.
+    // Äldst använda tas bort först; ett rum som inte finns här läser sina meddelanden från historiken.
+    private final Map<String, ArrayDeque<Frame>> savedTails = new LinkedHashMap<String, ArrayDeque<Frame>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ArrayDeque<Frame>> eldest) {
+            if (size() > SAVED_TAILS) {
+                tailsComplete = false;
+                return true;
+            }
+            return false;
+        }
+    };
+    // true så länge varje rum med meddelanden i historiken antingen finns eller har en post i savedTails.
+    // Ett nytt rum behöver då inte leta i historiken alls. Skyddas av savedTails.
+    private boolean tailsComplete;
+
+    public RoomManager(int dispatcherCount) {
+        this(dispatcherCount, null, 0);
+    }
+
+    public RoomManager(int dispatcherCount, MessageLog history, int replay) {
+        this.history = history;
+        this.replay = history != null ? replay : 0;
+        dispatchers = new ExecutorService[Math.max(1, dispatcherCount)];
+        for (int i = 0; i < dispatchers.length; i++) {
+            String threadName = "room-dispatcher-" + i;
+            dispatchers[i] = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, threadName);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        if (this.replay > 0) {
+            warmUp();
+        }
+    }
+
+    // Flyttar klienten till rummet. Rummet skapas om det inte finns. Returnerar rummet.
+    public Room join(ChatSession session, String roomName) {
+        Room previous = roomOf.get(session);
+        if (previous != null && previous.getName().equals(roomName)) {
+            return previous;
+        }
+        // compute låser bara rummets post i tabellen, så ett rum kan inte tas bort samtidigt som någon går in i det.
+        Room room = rooms.compute(roomName, (name, existing) -> {
+            Room target = existing != null ? existing : new Room(name, dispatcherFor(name), replay, () -> initialTail(name));
+            target.add(session);
+            return target;
+        });
+        roomOf.put(session, room);
+        if (previous != null) {
+            leaveRoom(session, previous);
+        }
+        return room;
+    }
+
+    // Tar bort klienten helt, t.ex. när den kopplar ner.
+    public void remove(ChatSession session) {
+        Room room = roomOf.remove(session);
+        if (room != null) {
+            leaveRoom(session, room);
+        }
+    }
+
+    // Rummet med det namnet, eller null om det inte finns. Skapar inget rum.
+    public Room find(String roomName) {
+        return rooms.get(roomName);
+    }
+
+    // Rummet som klienten är i, eller null om den inte gått med i något rum än.
+    public Room roomOf(ChatSession session) {
+        return roomOf.get(session);
+    }
+
+    // Alla rum med antal medlemmar, sorterade på namn.
+    public Map<String, Integer> roomSizes() {
+        Map<String, Integer> sizes = new TreeMap<>();
+        for (Room room : rooms.values()) {
+            sizes.put(room.getName(), room.size());
+        }
+        return sizes;
+    }
+
+    // Tomma rum tas bort, utom standardrummet.
+    private void leaveRoom(ChatSession session, Room room) {
+        rooms.computeIfPresent(room.getName(), (name, existing) -> {
+            if (existing != room) {
+                return existing;    // Rummet har redan tagits bort och skapats på nytt.
+            }
+            existing.remove(session);
+            if (existing.isEmpty() && !name.equals(DEFAULT_ROOM)) {
+                existing.retire(tail -> saveTail(name, tail));
+                return null;
+            }
+            return existing;
+        });
+    }
+
+    // Läser de senaste posterna i historiken en gång, i ordning, och sparar varje rums sista meddelanden.
+    // Då behöver de första som går in i rummen efter en omstart inte söka igenom historiken var för sig.
+    private void warmUp() {
+        long after = Math.max(0, history.getLastSeq() - WARM_UP_RECORDS);
+        synchronized (savedTails) {
+            tailsComplete = after == 0;
+            for (MessageLog.Entry entry : history.readSince(after, WARM_UP_RECORDS)) {
+                remember(entry.room, Frame.of(entry.sender + ": " + entry.text));
+            }
+        }
+    }
+
+    // Sparar ett meddelande till ett rum som inte finns här, t.ex. från en annan nod i federationen,
+    // så att det skickas till den som senare skapar rummet.
+    public void remember(String roomName, Frame frame) {
+        if (replay == 0) {
+            return;
+        }
+        synchronized (savedTails) {
+            ArrayDeque<Frame> tail = savedTails.computeIfAbsent(roomName, name -> new ArrayDeque<>());
+            tail.addLast(frame);
+            if (tail.size() > replay) {
+                tail.removeFirst();
+            }
+        }
+    }
+
+    private void saveTail(String roomName, ArrayDeque<Frame> tail) {
+        synchronized (savedTails) {
+            savedTails.put(roomName, tail);
+        }
+    }
+
+    // Körs på rummets dispatcher-tråd när rummet skapas. Finns inga sparade meddelanden läses de från historiken;
+    // det söker igenom loggen bakifrån och görs därför här och inte i tråden som går in i rummet.
+    private ArrayDeque<Frame> initialTail(String roomName) {
+        synchronized (savedTails) {
+            ArrayDeque<Frame> saved = savedTails.remove(roomName);
+            if (saved != null || tailsComplete) {
+                return saved;
+            }
+        }
+        ArrayDeque<Frame> tail = new ArrayDeque<>();
+        for (MessageLog.Entry entry : history.readLast(roomName, replay)) {
+            tail.addLast(Frame.of(entry.sender + ": " + entry.text));
+        }
+        return tail;
+    }
+
+    private Executor dispatcherFor(String roomName) {
+        return dispatchers[(roomName.hashCode() & Integer.MAX_VALUE) % dispatchers.length];
+    }
+}
@@ -4,86 +4,365 @@
 
 package server;
 
+import common.ChatSession;      // Gemensamt interface för alla klientanslutningar (trådbaserade och NIO).
 import common.ClientHandler;    // Importerar ClientHandler klassen som hanterar individuella klientanslutningar.
+import common.Frame;            // En färdigkodad rad som delas mellan alla mottagare.
+import common.RateLimiter;      // Begränsar hur fort en klient får skicka.
 
 import java.io.*;
 import java.net.*;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.*;
 
 public class Server {
-    // En Set är en samling som inte tillåter dubbletter, vilket innebär att varje element är unikt
-    // HashSet används för att lagra ClientHandler-objekt, som håller referenser till alla anslutna klienter.
-    // HashSet är en av de mest använda implementationerna av Set-gränssnittet
-    // Den använder en hash-tabell för att lagra elementen och erbjuder snabb åtkomsttid för operationer som att lägga till, ta bort och söka efter element.
-    private static Set<ClientHandler> clientHandlers = new HashSet<>();
+    // ClientRegistry håller referenser till alla anslutna klienter, utan dubbletter.
+    // Den ändras från accept-tråden och från varje klients tråd samtidigt som broadcast itererar över den,
+    // därför bygger den på ConcurrentHashMap i stället för en vanlig HashSet (se ClientRegistry.java).
+    // Den har också ett index från användarnamn till klient.
+    private static final ClientRegistry clientHandlers = new ClientRegistry();
+    // Skickar medlemsändringar till klienterna, ihopsamlade och som deltan (se MembershipPublisher.java).
+    private static MembershipPublisher membership = new MembershipPublisher(clientHandlers, 50);
+    // Chattrummen. Ett meddelande går bara till medlemmarna i avsändarens rum (se RoomManager.java).
+    private static RoomManager rooms = new RoomManager(Runtime.getRuntime().availableProcessors());
+    // Sparad chatthistorik (se MessageLog.java). null om historiken är avstängd.
+    private static MessageLog history;
+    // Länkar till andra serverprocesser med "--peer-port" och "--peers" (se Federation.java). null om servern står ensam.
+    private static Federation federation;
+    // Pingar tysta klienter och stänger döda anslutningar (se HeartbeatMonitor.java). null med "--idle-timeout=0".
+    private static HeartbeatMonitor heartbeats;
+    // Räknare och histogram för anslutningar, meddelanden och skrivningar (se ServerMetrics.java).
+    // Kan läsas via JMX eller som text på http://127.0.0.1:12346/stats.
+    private static final ServerMetrics metrics = new ServerMetrics(clientHandlers);
 
     // Server startas och väntar på att klienter ska ansluta
     public static void main(String[] args) throws IOException { // IOException om något går fel med nätverksanslutningarna.
+        // Startinställningar, t.ex. "--mode=nio" för att köra med Selector och event-loopar i stället för en tråd per klient.
+        ServerConfig config = ServerConfig.parse(args);
+        configure(config);
+        if (config.getMode() == ServerConfig.Mode.NIO) {
+            new NioServer(config).start();
+            return;
+        }
+
         // FAS 1
         // Instansen serverSocket skapas av en ServerSocket klass är TCP-komponenter i Java som används för att skapa och hantera anslutningar.
         // Servern lyssnar på port 12345 för inkommande anslutningar.
-        ServerSocket serverSocket = new ServerSocket(12345);
-        System.out.println("Server started. Waiting for clients...");
+        ServerSocket serverSocket = new ServerSocket(config.getPort());
+        // ClientHandler körs på en executor: en plattformstråd per klient, eller en virtuell tråd per klient med "--mode=virtual".
+        ExecutorService executor = config.getMode() == ServerConfig.Mode.VIRTUAL
+                ? newVirtualThreadExecutor()
+                : Executors.newCachedThreadPool();
+        // Begränsar antalet samtidiga sessioner med "--max-connections=N". null betyder ingen gräns.
+        Semaphore connectionPermits = config.getMaxConnections() > 0 ? new Semaphore(config.getMaxConnections()) : null;
+        // Vid Ctrl+C eller kill stängs servern ner ordnat.
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> shutdown(serverSocket, executor)));
+        ServerLog.info("Server started ({} mode). Waiting for clients...", config.getMode().name().toLowerCase());
 
-        while (true) {  // En oändlig loop som gör att servern alltid är redo att acceptera nya klienter.
+        while (!serverSocket.isClosed()) {  // En loop som gör att servern alltid är redo att acceptera nya klienter tills den stängs ner.
+            // Med "--on-full=queue" väntar servern på en ledig plats innan nästa anslutning accepteras.
+            // Nya klienter får då vänta i operativsystemets kö för anslutningar.
+            if (connectionPermits != null && config.getOnFull() == ServerConfig.OnFull.QUEUE) {
+                connectionPermits.acquireUninterruptibly();
+            }
             // FAS 3
             // En klientanslutning accepteras när en klient ansluter. Detta skapar en Socket-anslutning till klienten.
             // variabeln socket används för att referera anslutningen.
-            Socket clientSocket = serverSocket.accept();  //Socket NOELIA_SOCKET
-            System.out.println("New client connected.");
+            Socket clientSocket;
+            try {
+                clientSocket = serverSocket.accept();  //Socket NOELIA_SOCKET
+            } catch (SocketException e) {
+                // serverSocket har stängts av shutdown(), accept-loopen avslutas.
+                break;
+            }
+            // Med "--on-full=reject" (standard) avvisas klienten direkt om servern är full.
+            if (connectionPermits != null && config.getOnFull() == ServerConfig.OnFull.REJECT && !connectionPermits.tryAcquire()) {
+                reject(clientSocket);
+                continue;
+            }
+            metrics.connectionAccepted();
+            ServerLog.info("New client connected.");
+            // Klienter utan heartbeat upptäcks bara av operativsystemets keepalive (se HeartbeatMonitor).
+            clientSocket.setKeepAlive(true);
             // En ny clientHandler instans skapas för att hantera den nya anslutna klient med Clienthandler klassen från ClientHandler.java
             // Den anslutna klienten skapas och passerar den anslutna sockeln och listan över klienter.
-            ClientHandler clientHandler = new ClientHandler(clientSocket, clientHandlers);    //ClientHandler handler_NOELIA = new ClientHandler(NOELIA_SOCKET, clientHandlers)
+            // Varje klient får också en egen begränsad utgående kö och en skrivartråd från samma executor.
+            ClientHandler clientHandler = new ClientHandler(clientSocket, clientHandlers, config.newOutboundQueue(),
+                    config.newRateLimiter(), executor);    //ClientHandler handler_NOELIA = new ClientHandler(NOELIA_SOCKET, clientHandlers, ...)
             // I listan över klienter "clientHandlers" läggs till den nya "clientHandler" klient instansen.
-            clientHandlers.add(clientHandler);  // clientHandlers.add(handler_NOELIA)
-            // Här startas en ny tråd för att hantera klientens kommunikation
-            new Thread(clientHandler).start();  // new Thread(handler_NOELIA).start()
+            addClient(clientHandler);  // clientHandlers.add(handler_NOELIA)
+            // Här startas en ny tråd (plattform eller virtuell) för att hantera klientens kommunikation
+            // Platsen i connectionPermits lämnas tillbaka när klienten kopplar ner.
+            executor.execute(() -> {
+                try {
+                    clientHandler.run();
+                } finally {
+                    if (connectionPermits != null) {
+                        connectionPermits.release();
+                    }
+                }
+            });
             // Nu innehåller clientHandlers en ClientHandler objekt för Noelia som heter handler_NOELIA.
             // Vid utökning koommer clientHandlers innehålla en ti objekt för ELian, Beto och kike. (handler_ELIAN, handler_BETO och handler_KIKE)
         }
     }
 
-    // Metod för att skicka meddelanden till alla klienter utom avsändaren
-    // När en klient skickar ett meddelande, tas det emot av ClientHandler.java först
-    // Server.broadcast används för att sända meddelandet till alla andra klienter
-    public static void broadcast(String message, String sender, ClientHandler senderHandler) {
-        // Itererar över alla anslutna klienter med indixering "clienthandler" i listan clientHandlers
-        for (ClientHandler clientHandler : clientHandlers) {
-            // Här säkerställs att meddelandet inte skickas tillbaka till avsändaren
-            if (clientHandler == senderHandler) {
-                clientHandler.sendMessage("You: " + message);
+    // Skapar serverns delade komponenter enligt startinställningarna. Gäller både trådläge och NIO-läge.
+    static void configure(ServerConfig config) throws IOException {
+        // Loggen skrivs av en egen tråd, så klienttrådarna aldrig väntar på konsolen (se ServerLog.java).
+        ServerLog.configure(config);
+        membership = new MembershipPublisher(clientHandlers, config.getMembersCoalesceMillis());
+        if (config.getHistoryDir() != null) {
+            MessageLog log = new MessageLog(Paths.get(config.getHistoryDir()), config.getHistorySegmentBytes(), config.getHistorySegments());
+            // Det som ligger i historikens skrivkö sparas innan processen avslutas.
+            Runtime.getRuntime().addShutdownHook(new Thread(log::close));
+            history = log;
+            metrics.setHistory(log);
+        }
+        // Rummen håller sina senaste meddelanden i minnet; historiken läses bara vid start och för rum som inte finns där.
+        rooms = new RoomManager(config.getRoomDispatchers(), history, config.getHistoryReplay());
+        if (config.getIdleTimeoutSeconds() > 0) {
+            heartbeats = new HeartbeatMonitor(config.getIdleTimeoutSeconds() * 1000L, config.getReadTimeoutSeconds() * 1000L);
+        }
+        if (config.getPeerPort() > 0) {
+            federation = new Federation(config.getNodeId(), config.getPeerBind(), config.getPeerPort(), config.getPeers(), membership);
+            federation.start();
+        }
+        metrics.start();
+        // "--stats-port=0" stänger av statistiksidan; JMX finns kvar.
+        if (config.getStatsPort() > 0) {
+            new StatsEndpoint(config.getStatsPort(), metrics).start();
+        }
+    }
+
+    // Serverns mätvärden. Uppdateras av anslutningarna och rummen.
+    public static ServerMetrics metrics() {
+        return metrics;
+    }
+
+    // Skapar en executor som startar en ny virtuell tråd för varje klient.
+    // Executors.newVirtualThreadPerTaskExecutor finns från Java 21, därför hämtas den via reflection.
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("--mode=virtual requires Java 21 or later", e);
+        }
+    }
+
+    // Meddelar en klient att servern är full och stänger anslutningen.
+    private static void reject(Socket clientSocket) {
+        metrics.connectionRejected();
+        ServerLog.warn("Server full, rejected {}", clientSocket.getRemoteSocketAddress());
+        try (Socket socket = clientSocket) {
+            new PrintWriter(socket.getOutputStream(), true).println("Server is full, try again later.");
+        } catch (IOException e) {
+            ServerLog.error("Could not reject {}", clientSocket.getRemoteSocketAddress(), e);
+        }
+    }
+
+    // Stänger ner servern: slutar ta emot nya klienter, kopplar ner de anslutna och väntar på att deras trådar avslutas.
+    private static void shutdown(ServerSocket serverSocket, ExecutorService executor) {
+        ServerLog.info("Shutting down server...");
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            ServerLog.error("Could not close server socket", e);
+        }
+        // Klienterna tar bort sig själva när de kopplas ner, vilket registret tål under iterationen.
+        for (ChatSession session : clientHandlers) {
+            if (session instanceof ClientHandler) {
+                ((ClientHandler) session).disconnect();
+            }
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+        }
+    }
+
+    // Lägger till en ny klient, från accept-loopen ovan eller från NioServer. Klienten övervakas sedan med heartbeats.
+    public static void addClient(ChatSession session) {
+        clientHandlers.add(session);
+        if (heartbeats != null) {
+            heartbeats.track(session);
+        }
+    }
+
+    // Anropas när en klient har angett sitt användarnamn. Klienten indexeras och medlemsändringen köas för utskick.
+    public static void memberJoined(ChatSession session) {
+        if (session.getUsername() == null) {
+            return;
+        }
+        if (!clientHandlers.bindUsername(session)) {
+            ServerLog.warn("Username {} is already in use.", session.getUsername());
+        }
+        // Alla börjar i standardrummet.
+        rooms.join(session, RoomManager.DEFAULT_ROOM);
+        membership.joined(session.getUsername());
+        if (federation != null) {
+            federation.localJoined(session.getUsername());
+        }
+    }
+
+    // Hanterar protokollkommandon som inte är chattmeddelanden. Returnerar true om raden var ett sådant kommando.
+    //   /caps <tillägg...>   klienten anmäler protokolltillägg, t.ex. "/caps members-delta"
+    //   /members             klienten begär hela medlemslistan igen
+    //   /join <rum>          klienten byter till ett annat rum, som skapas om det inte finns
+    //   /leave               klienten går tillbaka till standardrummet
+    //   /rooms               klienten får en lista över rummen och antal medlemmar
+    //   /ping <n>            klienten kontrollerar att servern lever och får "PONG <n>"
+    //   /pong <n>            svar på serverns "PING <n>"; räknas som trafik och behöver inget mer
+    //   /msg <namn> <text>   privat meddelande till en enda användare på den här servern
+    public static boolean handleCommand(ChatSession session, String message) {
+        if (message.startsWith("/msg ")) {
+            sendDirect(session, message.substring(5).trim());
+            return true;
+        }
+        if (message.equals("/pong") || message.startsWith("/pong ")) {
+            return true;
+        }
+        if (message.equals("/ping") || message.startsWith("/ping ")) {
+            session.sendControl("PONG" + message.substring(5));
+            return true;
+        }
+        if (message.startsWith("/join ")) {
+            // "/join #dev" och "/join dev" betyder samma rum; namnet sparas utan "#".
+            String roomName = message.substring(6).trim().replaceFirst("^#+", "");
+            if (roomName.isEmpty()) {
+                session.sendControl("Usage: /join <room>");
             } else {
-                // Här skickas meddelandet till alla andra klienter.
-                // sendMessage klass från Clienthandler.java
-                clientHandler.sendMessage(sender + ": " + message);
+                session.sendControl("You joined #" + rooms.join(session, roomName).getName());
+            }
+            return true;
+        }
+        if (message.equals("/leave")) {
+            session.sendControl("You joined #" + rooms.join(session, RoomManager.DEFAULT_ROOM).getName());
+            return true;
+        }
+        if (message.equals("/rooms")) {
+            StringBuilder list = new StringBuilder("Rooms:");
+            for (Map.Entry<String, Integer> room : rooms.roomSizes().entrySet()) {
+                list.append(" #").append(room.getKey()).append(" (").append(room.getValue()).append(")");
+            }
+            session.sendControl(list.toString());
+            return true;
+        }
+        if (message.startsWith("/caps ")) {
+            for (String capability : message.substring(6).trim().split("\\s+")) {
+                session.getCapabilities().add(capability);
+            }
+            // En klient som vill ha deltan får en snapshot att utgå från.
+            if (session.getCapabilities().contains(MembershipPublisher.DELTA_CAPABILITY)) {
+                membership.sendSnapshot(session);
             }
+            return true;
+        }
+        if (message.equals("/members")) {
+            membership.sendSnapshot(session);
+            return true;
+        }
+        return false;
+    }
+
+    // "/msg bob Hej" skickas bara till bob. Mottagaren slås upp i registrets namnindex i konstant tid,
+    // så ett privat meddelande kostar lika lite oavsett hur många som är anslutna och går inte via något rum.
+    // Privata meddelanden sparas inte i historiken och skickas inte till andra noder i federationen.
+    private static void sendDirect(ChatSession session, String arguments) {
+        int space = arguments.indexOf(' ');
+        if (space < 0 || arguments.substring(space + 1).trim().isEmpty()) {
+            session.sendControl("Usage: /msg <user> <text>");
+            return;
+        }
+        String recipientName = arguments.substring(0, space);
+        String text = arguments.substring(space + 1).trim();
+        ChatSession recipient = clientHandlers.find(recipientName);
+        if (recipient == null) {
+            session.sendControl("No such user: " + recipientName);
+            return;
+        }
+        recipient.sendMessage(session.getUsername() + " (private): " + text);
+        if (recipient != session) {
+            session.sendMessage("You (to " + recipientName + "): " + text);
+        }
+        metrics.directMessageSent();
+    }
+
+    // Tar en pollett ur klientens hink. Returnerar true om meddelandet ska kastas för att klienten skickar för fort.
+    // Klienten får en varning första gången i en följd av kastade meddelanden, inte för vart och ett,
+    // så att en klient som översvämmar servern inte också får lika många svar tillbaka.
+    public static boolean throttle(ChatSession session, RateLimiter rateLimiter) {
+        if (rateLimiter == null || rateLimiter.tryAcquire()) {
+            return false;
+        }
+        metrics.messageThrottled();
+        if (rateLimiter.getDroppedInRow() == 1) {
+            session.sendControl("You are sending messages too fast. Messages are being dropped.");
+            ServerLog.warn("Throttling {}.", session.getUsername());
+        }
+        return true;
+    }
+
+    // Metod för att skicka meddelanden till alla klienter i avsändarens rum
+    // När en klient skickar ett meddelande, tas det emot av ClientHandler.java först
+    // Server.broadcast används för att sända meddelandet till alla andra klienter i samma rum
+    public static void broadcast(String message, String sender, ChatSession senderHandler) {
+        // Meddelandet kodas en gång för avsändaren och en gång för alla andra.
+        // Samma Frame delas sedan av alla mottagare, så varje extra mottagare kostar ingen ny sträng eller kodning.
+        Frame toSender = Frame.of("You: " + message);
+        Frame toOthers = Frame.of(sender + ": " + message);
+        // En klient som ännu inte gått med i något rum räknas till standardrummet.
+        Room room = rooms.roomOf(senderHandler);
+        if (room == null) {
+            room = rooms.join(senderHandler, RoomManager.DEFAULT_ROOM);
+        }
+        // Meddelandet köas för historiken; skrivningen till disk sker i en egen tråd och blockerar inte utskicket.
+        if (history != null) {
+            history.append(room.getName(), sender, message);
+        }
+        // Utskicket görs av rummets dispatcher-tråd, så avsändarens tråd kan läsa nästa meddelande direkt.
+        // Avsändaren får "You: ...", alla andra i rummet får "Alice: ..." (se Room.java).
+        room.broadcast(toSender, toOthers, senderHandler);
+        // Andra noder skickar meddelandet till sina klienter i rummet med samma namn.
+        if (federation != null) {
+            federation.localMessage(room.getName(), sender, message);
+        }
+    }
+
+    // Ett meddelande från en klient på en annan nod (se Federation.java). Går till alla i rummet på den här noden
+    // och sparas i historiken, men skapar inget rum om ingen här är med i det.
+    static void deliverRemote(String roomName, String sender, String message) {
+        if (history != null) {
+            history.append(roomName, sender, message);
+        }
+        Room room = rooms.find(roomName);
+        Frame frame = Frame.of(sender + ": " + message);
+        if (room != null) {
+            room.broadcast(frame, frame, null);
+        } else {
+            rooms.remember(roomName, frame);
         }
     }
 
     // Metod för att tar bort en klient från listan över anslutna klienter.
-    public static void removeClient(ClientHandler clientHandler) {
+    public static void removeClient(ChatSession clientHandler) {
         // tar bort den specificerade klienten från listan
         clientHandlers.remove(clientHandler);
-        // Anropar metoden broadcastMembers för att uppdatera och sänder medlemslistan till alla återstående klienter
-        broadcastMembers();
-    }
-
-    // Metod för att sända en lista över alla anslutna medlemmar till klienterna.
-    public static void broadcastMembers() {
-        // Skapar instansen members med en StringBuilder klass för att bygga medlemslistan.
-        StringBuilder members = new StringBuilder("MEMBERS:");
-        // Itererar över alla anslutna klienter med indixering "clienthandler" i listan clientHandlers.
-        for (ClientHandler clientHandler : clientHandlers) {
-            //  Lägger till varje klients användarnamn till medlemslistan.
-            members.append(clientHandler.getUsername()).append(",");
-        }
-        // Konverterar StringBuilder till en sträng
-        String membersList = members.toString();
-        // itererar igen över alla klienter
-        for (ClientHandler clientHandler : clientHandlers) {
-            // skickar medlemslistan till varje klient
-            clientHandler.sendMessage(membersList);
+        rooms.remove(clientHandler);
+        if (heartbeats != null) {
+            heartbeats.untrack(clientHandler);
+        }
+        metrics.connectionClosed();
+        // Köar medlemsändringen; de återstående klienterna får den i nästa samlade utskick.
+        if (clientHandler.getUsername() != null) {
+            membership.left(clientHandler.getUsername());
+            if (federation != null) {
+                federation.localLeft(clientHandler.getUsername());
+            }
         }
     }
 }
-
@@ -0,0 +1,287 @@
+// Startup options for the chat server.
+// ServerConfig.java parses command line arguments such as --mode=nio and --port=12345.
+// Läser in serverns startinställningar från kommandoraden.
+
+package server;
+
+import common.OutboundQueue;
+import common.RateLimiter;
+
+import java.util.*;
+
+public class ServerConfig {
+    // Trådmodell som servern använder för klientanslutningar.
+    public enum Mode {
+        THREAD, // En plattformstråd per klient (ursprungligt beteende).
+        VIRTUAL, // En virtuell tråd per klient (kräver Java 21). ClientHandler är oförändrad.
+        NIO     // Ett fåtal event-loop-trådar med Selector och icke-blockerande kanaler.
+    }
+
+    // Vad som händer med nya anslutningar när --max-connections är nått.
+    public enum OnFull {
+        REJECT, // Klienten får ett meddelande och anslutningen stängs.
+        QUEUE   // Servern slutar acceptera tills en plats blir ledig; klienter väntar i operativsystemets kö.
+    }
+
+    private Mode mode = Mode.THREAD;    // Standard är en tråd per klient.
+    private int port = 12345;   // Porten som klienterna ansluter till.
+    private int eventLoops = Runtime.getRuntime().availableProcessors();    // En event-loop per kärna i NIO-läge.
+    private int maxConnections = 0;     // Högsta antal samtidiga sessioner i thread/virtual-läge. 0 betyder ingen gräns.
+    private OnFull onFull = OnFull.REJECT;
+    private int queueCapacity = 1024;   // Max antal väntande utgående meddelanden per klient.
+    private OutboundQueue.OverflowPolicy overflowPolicy = OutboundQueue.OverflowPolicy.DROP_OLDEST;
+    private int roomDispatchers = Runtime.getRuntime().availableProcessors();  // Trådar som rummen fördelas på.
+    private String historyDir = "history";  // Katalog för chatthistoriken. "none" stänger av historiken.
+    private int historyReplay = 50;         // Antal tidigare meddelanden som visas när någon går in i ett rum.
+    private int historySegmentBytes = 16 * 1024 * 1024;
+    private int historySegments = 32;       // Äldre segment än så här tas bort.
+    private long membersCoalesceMillis = 50;    // Medlemsändringar inom detta fönster skickas i ett och samma utskick.
+    private int statsPort = 12346;  // Lokal HTTP-port för /stats. 0 stänger av den.
+    private ServerLog.Level logLevel = ServerLog.Level.INFO;
+    private String logFile = null;  // Loggfil. Utan den skrivs loggen till konsolen.
+    private long logFileBytes = 64L * 1024 * 1024;  // Loggfilen roteras när den blivit så här stor.
+    private int logFiles = 5;       // Antal loggfiler som sparas, inklusive den aktuella.
+    private int logSample = 1;      // Var N:e händelse per chattmeddelande loggas. 1 loggar alla.
+    private String nodeId = UUID.randomUUID().toString().substring(0, 8);  // Nodens namn i federationen.
+    private int peerPort = 0;       // Port för länkar från andra noder. 0 betyder att federationen är avstängd.
+    // Adress som peer-porten lyssnar på. Länkarna har ingen autentisering, så standard är bara den egna maskinen.
+    private String peerBind = "127.0.0.1";
+    private List<String> peers = new ArrayList<>();     // Andra noder att ansluta till, "värd:port".
+    private int idleTimeoutSeconds = 30;    // Tystnad från klienten innan servern skickar PING. 0 stänger av heartbeats.
+    private int readTimeoutSeconds = 15;    // Tid att vänta på svar efter PING innan anslutningen stängs.
+    private double rateLimit = 20;  // Meddelanden per sekund och klient i längden. 0 stänger av begränsningen.
+    private int rateBurst = 40;     // Antal meddelanden en klient får skicka i en skur.
+    // Om --history-dir och --stats-port angetts. Annars får noder i en federation egna standardvärden, se parse().
+    private boolean historyDirSet;
+    private boolean statsPortSet;
+
+    // Tolkar argument på formen --namn=värde, t.ex. "java server.Server --mode=virtual --max-connections=50000".
+    public static ServerConfig parse(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+            String key = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+            switch (key) {
+                case "mode":
+                    config.mode = Mode.valueOf(value.toUpperCase());
+                    break;
+                case "port":
+                    config.port = Integer.parseInt(value);
+                    break;
+                case "loops":
+                    config.eventLoops = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "max-connections":
+                    config.maxConnections = Integer.parseInt(value);
+                    break;
+                case "on-full":
+                    config.onFull = OnFull.valueOf(value.toUpperCase());
+                    break;
+                case "queue-capacity":
+                    config.queueCapacity = Integer.parseInt(value);
+                    break;
+                case "on-slow":     // drop-oldest, drop-newest eller disconnect
+                    config.overflowPolicy = OutboundQueue.OverflowPolicy.valueOf(value.toUpperCase().replace('-', '_'));
+                    break;
+                case "members-coalesce-ms":
+                    config.membersCoalesceMillis = Long.parseLong(value);
+                    break;
+                case "room-dispatchers":
+                    config.roomDispatchers = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "history-dir":
+                    config.historyDir = value.equals("none") ? null : value;
+                    config.historyDirSet = true;
+                    break;
+                case "history-replay":
+                    config.historyReplay = Integer.parseInt(value);
+                    break;
+                case "history-segment-mb":
+                    config.historySegmentBytes = Integer.parseInt(value) * 1024 * 1024;
+                    break;
+                case "history-segments":
+                    config.historySegments = Integer.parseInt(value);
+                    break;
+                case "stats-port":
+                    config.statsPort = Integer.parseInt(value);
+                    config.statsPortSet = true;
+                    break;
+                case "log-level":   // debug, info, warn eller error
+                    config.logLevel = ServerLog.Level.valueOf(value.toUpperCase());
+                    break;
+                case "log-file":
+                    config.logFile = value;
+                    break;
+                case "log-file-mb":
+                    config.logFileBytes = Long.parseLong(value) * 1024 * 1024;
+                    break;
+                case "log-files":
+                    config.logFiles = Integer.parseInt(value);
+                    break;
+                case "log-sample":
+                    config.logSample = Integer.parseInt(value);
+                    break;
+                case "node-id":
+                    config.nodeId = value;
+                    break;
+                case "peer-port":
+                    config.peerPort = Integer.parseInt(value);
+                    break;
+                case "peer-bind":   // t.ex. --peer-bind=10.0.0.5 på ett betrott internt nät, eller 0.0.0.0
+                    config.peerBind = value;
+                    break;
+                case "idle-timeout":
+                    config.idleTimeoutSeconds = Integer.parseInt(value);
+                    break;
+                case "read-timeout":
+                    config.readTimeoutSeconds = Integer.parseInt(value);
+                    break;
+                case "rate-limit":
+                    config.rateLimit = Double.parseDouble(value);
+                    break;
+                case "rate-burst":
+                    config.rateBurst = Integer.parseInt(value);
+                    break;
+                case "peers":   // t.ex. --peers=localhost:13346,localhost:13347
+                    config.peers = new ArrayList<>();
+                    for (String peer : value.split(",")) {
+                        if (!peer.trim().isEmpty()) {
+                            config.peers.add(peer.trim());
+                        }
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: --" + key);
+            }
+        }
+        // Flera noder på samma maskin kan inte dela historikkatalog eller statistikport. I en federation får
+        // varje nod därför en katalog efter sin klientport, t.ex. history-12345, och /stats bara om den anges.
+        if (config.peerPort > 0) {
+            if (!config.historyDirSet) {
+                config.historyDir = "history-" + config.port;
+            }
+            if (!config.statsPortSet) {
+                config.statsPort = 0;
+            }
+        }
+        return config;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public int getEventLoops() {
+        return eventLoops;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public OnFull getOnFull() {
+        return onFull;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public OutboundQueue.OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public int getRoomDispatchers() {
+        return roomDispatchers;
+    }
+
+    // Katalogen för historiken, eller null om den är avstängd.
+    public String getHistoryDir() {
+        return historyDir;
+    }
+
+    public int getHistoryReplay() {
+        return historyReplay;
+    }
+
+    public int getHistorySegmentBytes() {
+        return historySegmentBytes;
+    }
+
+    public int getHistorySegments() {
+        return historySegments;
+    }
+
+    public long getMembersCoalesceMillis() {
+        return membersCoalesceMillis;
+    }
+
+    // Porten för statistiksidan, eller 0 om den är avstängd.
+    public int getStatsPort() {
+        return statsPort;
+    }
+
+    public ServerLog.Level getLogLevel() {
+        return logLevel;
+    }
+
+    // Loggfilen, eller null om loggen skrivs till konsolen.
+    public String getLogFile() {
+        return logFile;
+    }
+
+    public long getLogFileBytes() {
+        return logFileBytes;
+    }
+
+    public int getLogFiles() {
+        return logFiles;
+    }
+
+    public int getLogSample() {
+        return logSample;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    // Porten för länkar från andra noder, eller 0 om servern inte ingår i någon federation.
+    public int getPeerPort() {
+        return peerPort;
+    }
+
+    public String getPeerBind() {
+        return peerBind;
+    }
+
+    public List<String> getPeers() {
+        return peers;
+    }
+
+    // Sekunder utan trafik innan en klient pingas, eller 0 om heartbeats är avstängda.
+    public int getIdleTimeoutSeconds() {
+        return idleTimeoutSeconds;
+    }
+
+    public int getReadTimeoutSeconds() {
+        return readTimeoutSeconds;
+    }
+
+    // Skapar en ny utgående kö enligt inställningarna, en per klient.
+    public <T> OutboundQueue<T> newOutboundQueue() {
+        return new OutboundQueue<>(queueCapacity, overflowPolicy);
+    }
+
+    // Skapar en ny hink för inkommande meddelanden, en per klient. null om begränsningen är avstängd.
+    public RateLimiter newRateLimiter() {
+        return rateLimit > 0 ? new RateLimiter(rateLimit, rateBurst) : null;
+    }
+}
@@ -0,0 +1,315 @@
+// Asynchronous server log.
+// ServerLog.java hands log events to a background writer through a lock-free ring buffer.
+// Serverns logg. Trådarna som loggar lägger bara händelsen i en ringbuffert; en egen tråd formaterar och skriver.
+
+package server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.*;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+// En loggrad består av en mall med "{}" och upp till tre argument, t.ex.
+//   ServerLog.info("Received from {}: {}", username, message);
+// Den som loggar sparar bara mallen och referenserna i en förallokerad plats i ringbufferten.
+// Strängen byggs först i skrivartråden, så loggning kostar varken lås eller ny sträng i klienttrådarna.
+//
+// Ringbufferten har flera producenter och en konsument. En producent reserverar en plats med compareAndSet
+// på head och publicerar den genom att skriva platsens nummer i published. Är bufferten full kastas händelsen
+// (och räknas) i stället för att den som loggar får vänta.
+//
+// Skrivartråden tömmer allt som publicerats, skriver det i en omgång och flushar en gång per omgång.
+// Med --log-file skrivs loggen till en fil som roteras när den blivit för stor, annars till konsolen.
+public final class ServerLog {
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    private static final int CAPACITY = 1 << 16;    // Antal platser i ringbufferten (en tvåpotens).
+    private static final int MASK = CAPACITY - 1;
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
+    private static final int MAX_IDLE_SHIFT = 5;    // Skrivartråden sover som längst 1 << 5 = 32 ms när inget loggas.
+
+    // En plats i ringbufferten. Återanvänds; fälten nollställs när händelsen är skriven.
+    private static final class Event {
+        long time;
+        Level level;
+        String template;
+        Object arg1;
+        Object arg2;
+        Object arg3;
+    }
+
+    private static final Event[] slots = new Event[CAPACITY];
+    private static final AtomicLongArray published = new AtomicLongArray(CAPACITY);    // Numret på händelsen som ligger på platsen.
+    private static final AtomicLong head = new AtomicLong();    // Nästa nummer att reservera.
+    private static volatile long tail;  // Nästa nummer skrivartråden ska läsa. Platser före tail är lediga.
+    private static final LongAdder dropped = new LongAdder();  // Händelser som kastades för att bufferten var full.
+
+    private static volatile Level level = Level.INFO;
+    private static volatile int sampleRate = 1;     // Var sampleRate:e meddelandehändelse loggas, i genomsnitt.
+    private static volatile boolean closed;
+    private static volatile Thread writer;
+
+    // Utdata. Används bara av skrivartråden.
+    private static Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 64 * 1024);
+    private static Path file;
+    private static long maxFileBytes;
+    private static int maxFiles;
+    private static long fileBytes;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            slots[i] = new Event();
+            published.set(i, -1);
+        }
+    }
+
+    private ServerLog() {
+    }
+
+    // Startar skrivartråden enligt inställningarna. Anropas en gång när servern startar.
+    // Det som loggats innan dess ligger kvar i bufferten och skrivs när tråden startat.
+    static synchronized void configure(ServerConfig config) throws IOException {
+        level = config.getLogLevel();
+        sampleRate = Math.max(1, config.getLogSample());
+        if (config.getLogFile() != null) {
+            file = Paths.get(config.getLogFile());
+            maxFileBytes = config.getLogFileBytes();
+            maxFiles = Math.max(1, config.getLogFiles());
+            if (file.toAbsolutePath().getParent() != null) {
+                Files.createDirectories(file.toAbsolutePath().getParent());
+            }
+            fileBytes = Files.exists(file) ? Files.size(file) : 0;
+            out = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+        if (writer == null) {
+            writer = new Thread(ServerLog::writeLoop, "server-log");
+            writer.setDaemon(true);
+            writer.start();
+            // Det som ligger i bufferten skrivs ut innan processen avslutas.
+            Runtime.getRuntime().addShutdownHook(new Thread(ServerLog::close));
+        }
+    }
+
+    public static boolean isEnabled(Level eventLevel) {
+        return eventLevel.compareTo(level) >= 0;
+    }
+
+    public static void debug(String template, Object arg1) {
+        log(Level.DEBUG, template, arg1, null, null);
+    }
+
+    public static void info(String template) {
+        log(Level.INFO, template, null, null, null);
+    }
+
+    public static void info(String template, Object arg1) {
+        log(Level.INFO, template, arg1, null, null);
+    }
+
+    public static void info(String template, Object arg1, Object arg2) {
+        log(Level.INFO, template, arg1, arg2, null);
+    }
+
+    public static void warn(String template, Object arg1) {
+        log(Level.WARN, template, arg1, null, null);
+    }
+
+    public static void warn(String template, Object arg1, Object arg2) {
+        log(Level.WARN, template, arg1, arg2, null);
+    }
+
+    // Ett sista argument som är en Throwable skrivs ut med stackspår efter raden.
+    public static void error(String template, Throwable error) {
+        log(Level.ERROR, template, null, null, error);
+    }
+
+    public static void error(String template, Object arg1, Throwable error) {
+        log(Level.ERROR, template, arg1, null, error);
+    }
+
+    // För händelser som sker en gång per chattmeddelande, t.ex. "Received from ...".
+    // Med --log-sample=N loggas i genomsnitt var N:e; slumpen dras per tråd, så det finns ingen delad räknare.
+    public static void message(String template, Object arg1, Object arg2) {
+        if (isEnabled(Level.INFO) && (sampleRate == 1 || ThreadLocalRandom.current().nextInt(sampleRate) == 0)) {
+            log(Level.INFO, template, arg1, arg2, null);
+        }
+    }
+
+    // Antal händelser som kastats för att skrivartråden inte hunnit med.
+    public static long getDropped() {
+        return dropped.sum();
+    }
+
+    private static void log(Level eventLevel, String template, Object arg1, Object arg2, Object arg3) {
+        if (!isEnabled(eventLevel)) {
+            return;
+        }
+        long seq;
+        do {
+            seq = head.get();
+            if (seq - tail >= CAPACITY) {
+                dropped.increment();
+                return;
+            }
+        } while (!head.compareAndSet(seq, seq + 1));
+        int index = (int) (seq & MASK);
+        Event event = slots[index];
+        event.time = System.currentTimeMillis();
+        event.level = eventLevel;
+        event.template = template;
+        event.arg1 = arg1;
+        event.arg2 = arg2;
+        event.arg3 = arg3;
+        // Platsen blir synlig för skrivartråden först här, efter att alla fält är satta.
+        published.lazySet(index, seq);
+    }
+
+    // Skriver ut allt som loggats och stoppar skrivartråden.
+    static void close() {
+        closed = true;
+        Thread thread = writer;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join(2000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void writeLoop() {
+        StringBuilder line = new StringBuilder(256);
+        int idleRounds = 0;
+        int closedRounds = 0;
+        while (true) {
+            int written = drain(line);
+            if (written > 0) {
+                idleRounds = 0;
+                try {
+                    out.flush();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            } else if (closed) {
+                // Andra avstängningstrådar (t.ex. Server.shutdown) kan fortfarande logga,
+                // så tråden slutar först när inget nytt kommit på ungefär 50 ms.
+                if (++closedRounds >= 50) {
+                    return;
+                }
+                LockSupport.parkNanos(1_000_000);
+            } else {
+                // Inget att skriva. Producenterna väcker aldrig tråden, så den tittar efter nya händelser själv:
+                // först efter 1 ms, sedan med dubbelt så lång paus varje gång upp till 32 ms.
+                // En server utan trafik väcker då tråden ungefär 30 gånger per sekund i stället för 1000.
+                LockSupport.parkNanos(1_000_000L << idleRounds);
+                idleRounds = Math.min(idleRounds + 1, MAX_IDLE_SHIFT);
+            }
+        }
+    }
+
+    // Skriver alla publicerade händelser i ordning. Returnerar antalet.
+    private static int drain(StringBuilder line) {
+        int count = 0;
+        long next = tail;
+        while (published.get((int) (next & MASK)) == next) {
+            Event event = slots[(int) (next & MASK)];
+            line.setLength(0);
+            format(event, line);
+            event.template = null;
+            event.arg1 = null;
+            event.arg2 = null;
+            event.arg3 = null;
+            next++;
+            tail = next;
+            write(line);
+            count++;
+        }
+        return count;
+    }
+
+    // "2024-05-01 12:00:00.000 INFO  Received from alice: hej"
+    private static void format(Event event, StringBuilder line) {
+        TIME.formatTo(LocalDateTime.ofInstant(Instant.ofEpochMilli(event.time), ZoneId.systemDefault()), line);
+        line.append(' ').append(event.level.name());
+        for (int i = event.level.name().length(); i < 6; i++) {
+            line.append(' ');
+        }
+        Object[] args = {event.arg1, event.arg2, event.arg3};
+        String template = event.template;
+        int arg = 0;
+        int from = 0;
+        int at;
+        while ((at = template.indexOf("{}", from)) >= 0) {
+            line.append(template, from, at);
+            if (arg < args.length) {
+                appendEscaped(line, String.valueOf(args[arg++]));
+            } else {
+                line.append("{}");
+            }
+            from = at + 2;
+        }
+        line.append(template, from, template.length()).append(System.lineSeparator());
+        for (Object value : args) {
+            if (value instanceof Throwable) {
+                StringWriter trace = new StringWriter();
+                ((Throwable) value).printStackTrace(new PrintWriter(trace));
+                line.append(trace);
+            }
+        }
+    }
+
+    // Ett v2-meddelande kan innehålla radbrytningar. De skrivs som \r och \n, så att en klient inte kan
+    // lägga till egna rader i loggen.
+    private static void appendEscaped(StringBuilder line, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\n') {
+                line.append("\\n");
+            } else if (c == '\r') {
+                line.append("\\r");
+            } else {
+                line.append(c);
+            }
+        }
+    }
+
+    private static void write(StringBuilder line) {
+        try {
+            out.append(line);
+            if (file != null) {
+                fileBytes += line.length();     // Ungefärligt (tecken, inte bytes), räcker för att avgöra rotationen.
+                if (fileBytes >= maxFileBytes) {
+                    rotate();
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // server.log byter namn till server.log.1, server.log.1 till server.log.2 osv. Den äldsta tas bort.
+    private static void rotate() throws IOException {
+        out.close();
+        Files.deleteIfExists(Paths.get(file + "." + (maxFiles - 1)));
+        for (int i = maxFiles - 2; i >= 1; i--) {
+            Path older = Paths.get(file + "." + i);
+            if (Files.exists(older)) {
+                Files.move(older, Paths.get(file + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (maxFiles > 1) {
+            Files.move(file, Paths.get(file + ".1"), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.deleteIfExists(file);
+        }
+        out = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        fileBytes = 0;
+    }
+}
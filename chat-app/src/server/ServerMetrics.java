@@ -0,0 +1,332 @@
+// Runtime counters and latency histograms for the chat server.
+// ServerMetrics.java is updated from the message path and read by JMX and the stats endpoint.
+// Räknare och latenshistogram för servern.
+
+package server;
+
+import common.ChatSession;
+import common.LatencyHistogram;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Meddelandevägen uppdaterar bara LongAdder-räknare och histogram med LongAdder-hinkar; inga lås.
+// Takter per sekund räknas ut av en egen samplingstråd en gång per sekund,
+// och köstatistik räknas fram först när någon läser den (JMX eller /stats).
+public class ServerMetrics implements ServerMetricsMBean {
+    private static final long STALL_MICROS = 10_000;    // En skrivning som tar längre tid än 10 ms räknas som ett stopp.
+
+    private final ClientRegistry sessions;
+    private volatile MessageLog history;    // För antalet kastade historikposter. null om historiken är avstängd.
+    private final LongAdder connectionsAccepted = new LongAdder();
+    private final LongAdder connectionsRejected = new LongAdder();
+    private final LongAdder connectionsClosed = new LongAdder();
+    private final LongAdder messagesIn = new LongAdder();
+    private final LongAdder messagesOut = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder writeStalls = new LongAdder();
+    private final LongAdder slowDisconnects = new LongAdder();
+    private final LongAdder idleDisconnects = new LongAdder();     // Stängda för att klienten slutat svara.
+    private final LongAdder throttledMessages = new LongAdder();   // Kastade för att klienten skickade för fort.
+    private final LongAdder directMessages = new LongAdder();      // Privata meddelanden (/msg).
+    private final LatencyHistogram broadcastMicros = new LatencyHistogram();   // Tid för ett utskick till ett rum.
+    private final LatencyHistogram writeMicros = new LatencyHistogram();       // Tid för en skrivomgång i ClientHandler.
+
+    // Senast uträknade takter per sekund.
+    private volatile double messagesInRate;
+    private volatile double messagesOutRate;
+    private volatile double bytesInRate;
+    private volatile double bytesOutRate;
+
+    public ServerMetrics(ClientRegistry sessions) {
+        this.sessions = sessions;
+    }
+
+    // Startar samplingstråden och registrerar JMX-bönan.
+    public void start() {
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long[] previous = new long[4];
+        sampler.scheduleAtFixedRate(() -> {
+            long[] current = {messagesIn.sum(), messagesOut.sum(), bytesIn.sum(), bytesOut.sum()};
+            messagesInRate = current[0] - previous[0];
+            messagesOutRate = current[1] - previous[1];
+            bytesInRate = current[2] - previous[2];
+            bytesOutRate = current[3] - previous[3];
+            System.arraycopy(current, 0, previous, 0, current.length);
+        }, 1, 1, TimeUnit.SECONDS);
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("chat:type=ServerMetrics"));
+        } catch (JMException e) {
+            ServerLog.error("Could not register metrics MBean", e);
+        }
+    }
+
+    public void connectionAccepted() {
+        connectionsAccepted.increment();
+    }
+
+    public void connectionRejected() {
+        connectionsRejected.increment();
+    }
+
+    public void connectionClosed() {
+        connectionsClosed.increment();
+    }
+
+    public void messageReceived() {
+        messagesIn.increment();
+    }
+
+    public void bytesRead(long bytes) {
+        bytesIn.add(bytes);
+    }
+
+    public void bytesWritten(long bytes) {
+        bytesOut.add(bytes);
+    }
+
+    // Ett utskick till recipients mottagare tog nanos nanosekunder.
+    public void broadcastDone(int recipients, long nanos) {
+        messagesOut.add(recipients);
+        broadcastMicros.record(nanos / 1000);
+    }
+
+    // En skrivomgång (skriv + flush) i en ClientHandler tog nanos nanosekunder.
+    public void writeDone(long nanos) {
+        long micros = nanos / 1000;
+        writeMicros.record(micros);
+        if (micros >= STALL_MICROS) {
+            writeStalls.increment();
+        }
+    }
+
+    // Socketens sändbuffert var full och anslutningen fick vänta (NIO-läge).
+    public void writeStalled() {
+        writeStalls.increment();
+    }
+
+    public void slowClientDisconnected() {
+        slowDisconnects.increment();
+    }
+
+    void setHistory(MessageLog history) {
+        this.history = history;
+    }
+
+    public void idleDisconnected() {
+        idleDisconnects.increment();
+    }
+
+    public void messageThrottled() {
+        throttledMessages.increment();
+    }
+
+    // Ett privat meddelande har en enda mottagare.
+    public void directMessageSent() {
+        directMessages.increment();
+        messagesOut.increment();
+    }
+
+    @Override
+    public long getActiveConnections() {
+        return connectionsAccepted.sum() - connectionsClosed.sum();
+    }
+
+    @Override
+    public long getConnectionsAccepted() {
+        return connectionsAccepted.sum();
+    }
+
+    @Override
+    public long getConnectionsRejected() {
+        return connectionsRejected.sum();
+    }
+
+    @Override
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    @Override
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public double getMessagesInPerSecond() {
+        return messagesInRate;
+    }
+
+    @Override
+    public double getMessagesOutPerSecond() {
+        return messagesOutRate;
+    }
+
+    @Override
+    public double getBytesInPerSecond() {
+        return bytesInRate;
+    }
+
+    @Override
+    public double getBytesOutPerSecond() {
+        return bytesOutRate;
+    }
+
+    @Override
+    public long getBroadcastP50Micros() {
+        return broadcastMicros.percentile(50);
+    }
+
+    @Override
+    public long getBroadcastP99Micros() {
+        return broadcastMicros.percentile(99);
+    }
+
+    @Override
+    public long getBroadcastMaxMicros() {
+        return broadcastMicros.max();
+    }
+
+    @Override
+    public long getWriteP99Micros() {
+        return writeMicros.percentile(99);
+    }
+
+    @Override
+    public long getWriteStalls() {
+        return writeStalls.sum();
+    }
+
+    @Override
+    public long getSlowDisconnects() {
+        return slowDisconnects.sum();
+    }
+
+    @Override
+    public long getIdleDisconnects() {
+        return idleDisconnects.sum();
+    }
+
+    // Logghändelser som kastades för att loggens ringbuffert var full (se ServerLog).
+    @Override
+    public long getLogEventsDropped() {
+        return ServerLog.getDropped();
+    }
+
+    // Meddelanden som inte sparades i historiken för att dess skrivkö var full (se MessageLog).
+    @Override
+    public long getHistoryDropped() {
+        MessageLog log = history;
+        return log != null ? log.getDropped() : 0;
+    }
+
+    @Override
+    public long getThrottledMessages() {
+        return throttledMessages.sum();
+    }
+
+    @Override
+    public long getDirectMessages() {
+        return directMessages.sum();
+    }
+
+    @Override
+    public long getTotalQueueDepth() {
+        long total = 0;
+        for (ChatSession session : sessions) {
+            total += session.getQueueDepth();
+        }
+        return total;
+    }
+
+    @Override
+    public long getMaxQueueDepth() {
+        long max = 0;
+        for (ChatSession session : sessions) {
+            max = Math.max(max, session.getQueueDepth());
+        }
+        return max;
+    }
+
+    // Kastade meddelanden för de klienter som är anslutna just nu.
+    @Override
+    public long getDroppedMessages() {
+        long dropped = 0;
+        for (ChatSession session : sessions) {
+            dropped += session.getDroppedMessages();
+        }
+        return dropped;
+    }
+
+    // Allt i textformat, en mätning per rad ("namn värde"), för /stats.
+    // De tio klienterna med djupast utgående kö listas för sig.
+    public String render() {
+        StringBuilder text = new StringBuilder();
+        line(text, "chat_connections_active", getActiveConnections());
+        line(text, "chat_connections_accepted_total", getConnectionsAccepted());
+        line(text, "chat_connections_rejected_total", getConnectionsRejected());
+        line(text, "chat_messages_in_total", getMessagesIn());
+        line(text, "chat_messages_out_total", getMessagesOut());
+        line(text, "chat_bytes_in_total", getBytesIn());
+        line(text, "chat_bytes_out_total", getBytesOut());
+        line(text, "chat_messages_in_per_second", getMessagesInPerSecond());
+        line(text, "chat_messages_out_per_second", getMessagesOutPerSecond());
+        line(text, "chat_bytes_in_per_second", getBytesInPerSecond());
+        line(text, "chat_bytes_out_per_second", getBytesOutPerSecond());
+        for (String quantile : new String[]{"0.5", "0.9", "0.99", "0.999"}) {
+            double percentile = Double.parseDouble(quantile) * 100;
+            line(text, "chat_broadcast_fanout_micros{quantile=\"" + quantile + "\"}", broadcastMicros.percentile(percentile));
+            line(text, "chat_client_write_micros{quantile=\"" + quantile + "\"}", writeMicros.percentile(percentile));
+        }
+        line(text, "chat_broadcast_fanout_micros_max", broadcastMicros.max());
+        line(text, "chat_client_write_micros_max", writeMicros.max());
+        line(text, "chat_client_write_stalls_total", getWriteStalls());
+        line(text, "chat_slow_client_disconnects_total", getSlowDisconnects());
+        line(text, "chat_idle_disconnects_total", getIdleDisconnects());
+        line(text, "chat_throttled_messages_total", getThrottledMessages());
+        line(text, "chat_direct_messages_total", getDirectMessages());
+        line(text, "chat_log_events_dropped_total", getLogEventsDropped());
+        line(text, "chat_history_dropped_total", getHistoryDropped());
+
+        long totalDepth = 0;
+        long dropped = 0;
+        PriorityQueue<ChatSession> deepest = new PriorityQueue<>(Comparator.comparingInt(ChatSession::getQueueDepth));
+        for (ChatSession session : sessions) {
+            totalDepth += session.getQueueDepth();
+            dropped += session.getDroppedMessages();
+            deepest.add(session);
+            if (deepest.size() > 10) {
+                deepest.poll();
+            }
+        }
+        line(text, "chat_queue_depth_total", totalDepth);
+        line(text, "chat_dropped_messages", dropped);
+        for (ChatSession session : deepest) {
+            String user = String.valueOf(session.getUsername()).replace("\\", "\\\\").replace("\"", "\\\"");
+            line(text, "chat_client_queue_depth{user=\"" + user + "\"}", session.getQueueDepth());
+        }
+        return text.toString();
+    }
+
+    private static void line(StringBuilder text, String name, Object value) {
+        text.append(name).append(' ').append(value).append('\n');
+    }
+}
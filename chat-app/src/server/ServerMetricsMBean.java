@@ -0,0 +1,56 @@
+// JMX view of the server's runtime metrics.
+// ServerMetricsMBean.java is registered as "chat:type=ServerMetrics" and can be read with jconsole or any JMX client.
+
+package server;
+
+public interface ServerMetricsMBean {
+    long getActiveConnections();
+
+    long getConnectionsAccepted();
+
+    long getConnectionsRejected();
+
+    long getMessagesIn();
+
+    long getMessagesOut();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    double getMessagesInPerSecond();
+
+    double getMessagesOutPerSecond();
+
+    double getBytesInPerSecond();
+
+    double getBytesOutPerSecond();
+
+    long getBroadcastP50Micros();
+
+    long getBroadcastP99Micros();
+
+    long getBroadcastMaxMicros();
+
+    long getWriteP99Micros();
+
+    long getWriteStalls();
+
+    long getSlowDisconnects();
+
+    long getIdleDisconnects();
+
+    long getLogEventsDropped();
+
+    long getHistoryDropped();
+
+    long getThrottledMessages();
+
+    long getDirectMessages();
+
+    long getTotalQueueDepth();
+
+    long getMaxQueueDepth();
+
+    long getDroppedMessages();
+}
@@ -0,0 +1,40 @@
+// Local plain-text stats endpoint for scrapers.
+// StatsEndpoint.java serves ServerMetrics.render() on http://127.0.0.1:<port>/stats.
+// En lokal HTTP-adress där serverns mätvärden kan hämtas som text.
+
+package server;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.*;
+
+public class StatsEndpoint {
+    private final HttpServer httpServer;
+
+    // Lyssnar bara på loopback, så statistiken inte exponeras utanför maskinen.
+    // Förfrågningarna hanteras av en egen tråd och påverkar inte meddelandevägen.
+    public StatsEndpoint(int port, ServerMetrics metrics) throws IOException {
+        httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        httpServer.createContext("/stats", exchange -> {
+            byte[] body = metrics.render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        httpServer.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "stats-endpoint");
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    public void start() {
+        httpServer.start();
+        ServerLog.info("Stats available at http://127.0.0.1:{}/stats", httpServer.getAddress().getPort());
+    }
+}
@@ -0,0 +1,118 @@
+// A hashed timer wheel: many timeouts, O(1) scheduling and a single sweeper thread.
+// TimerWheel.java is used by the server to check every session for missed heartbeats.
+// Ett hjul med tidsluckor. Att lägga till och avbryta en timeout kostar lika lite oavsett hur många som finns.
+
+package server;
+
+import java.util.Queue;
+import java.util.concurrent.*;
+
+// Hjulet har SLOTS luckor som var och en motsvarar en tick. En timeout läggs i luckan för sin deadline
+// (modulo SLOTS) tillsammans med antalet varv som återstår. Svepartråden går fram en lucka per tick och kör
+// de timeouts i luckan vars varv är slut; de andra får ett varv mindre. Med 100 000 sessioner finns då
+// bara en tråd och en timeout per session, i stället för en timer per anslutning.
+//
+// schedule() kan anropas från vilken tråd som helst och lägger bara timeouten i en kö.
+// Luckorna ägs av svepartråden, så de behöver inga lås. Uppgifterna körs i svepartråden och ska vara korta.
+public class TimerWheel {
+    private static final int SLOTS = 512;   // En tvåpotens.
+
+    // En schemalagd uppgift. cancel() tar inte bort den direkt; svepartråden hoppar över den.
+    public static final class Timeout {
+        private final Runnable task;
+        private final long deadline;    // Nanosekunder från hjulets start.
+        private long remainingRounds;
+        private Timeout next;
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+
+    private final long tickNanos;
+    private final long startTime = System.nanoTime();
+    private final Timeout[] heads = new Timeout[SLOTS];     // Enkellänkade listor, en per lucka.
+    private final Queue<Timeout> incoming = new ConcurrentLinkedQueue<>();
+    private long tick;  // Nästa lucka att gå igenom. Används bara av svepartråden.
+
+    public TimerWheel(long tickMillis, String threadName) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        Thread sweeper = new Thread(this::sweepLoop, threadName);
+        sweeper.setDaemon(true);
+        sweeper.start();
+    }
+
+    // Kör task efter ungefär delayMillis millisekunder (avrundat uppåt till en hel tick).
+    public Timeout schedule(Runnable task, long delayMillis) {
+        Timeout timeout = new Timeout(task, System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(delayMillis));
+        incoming.add(timeout);
+        return timeout;
+    }
+
+    private void sweepLoop() {
+        while (true) {
+            long wakeUp = startTime + (tick + 1) * tickNanos;
+            long sleep;
+            while ((sleep = wakeUp - System.nanoTime()) > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            transferIncoming();
+            expire((int) (tick & (SLOTS - 1)));
+            tick++;
+        }
+    }
+
+    // Flyttar nya timeouts från kön till sina luckor.
+    private void transferIncoming() {
+        Timeout timeout;
+        while ((timeout = incoming.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            long deadlineTick = Math.max(timeout.deadline / tickNanos, tick);
+            timeout.remainingRounds = (deadlineTick - tick) / SLOTS;
+            int slot = (int) (deadlineTick & (SLOTS - 1));
+            timeout.next = heads[slot];
+            heads[slot] = timeout;
+        }
+    }
+
+    // Kör de timeouts i luckan som gått ut och tar bort dem och de avbrutna ur listan.
+    private void expire(int slot) {
+        Timeout previous = null;
+        Timeout timeout = heads[slot];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            boolean remove = timeout.cancelled || timeout.remainingRounds <= 0;
+            if (remove) {
+                if (previous == null) {
+                    heads[slot] = next;
+                } else {
+                    previous.next = next;
+                }
+                timeout.next = null;
+                if (!timeout.cancelled) {
+                    try {
+                        timeout.task.run();
+                    } catch (RuntimeException e) {
+                        ServerLog.error("Timer task failed", e);
+                    }
+                }
+            } else {
+                timeout.remainingRounds--;
+                previous = timeout;
+            }
+            timeout = next;
+        }
+    }
+}